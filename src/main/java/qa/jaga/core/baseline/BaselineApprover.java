@@ -0,0 +1,249 @@
+package qa.jaga.core.baseline;
+
+import qa.jaga.core.common.FailureMarkers;
+import qa.jaga.core.common.ImageSidecar;
+import qa.jaga.core.common.RenderFingerprint;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * BaselineApprover class promotes screenshots to baselines from the command line, in parallel.
+ * Each selected screenshot is re-encoded to the canonical PNG profile (8-bit sRGB, alpha only when
+ * used, no ancillary metadata), written next to the baseline and atomically renamed over it. In the
+ * same pass its sidecar is rebuilt, and its recorded render fingerprint, difference image, and failure
+ * marker, all stale once the baseline changes, are deleted.
+ * <p>
+ * Usage: {@code BaselineApprover [--engine=selenium|playwright] [--imageDir=path] [--failed] [--all] [--threads=N] [name|glob ...]}
+ * <ul>
+ *     <li>{@code name|glob} - screenshot names without extension, or globs such as {@code contact*}.</li>
+ *     <li>{@code --failed} - screenshots whose comparison failed in the last run, as recorded by
+ *     {@link FailureMarkers}, including failures that left no difference image.</li>
+ *     <li>{@code --all} - every screenshot.</li>
+ *     <li>{@code --engine} - the engine whose images are approved, both by default; {@code --imageDir}
+ *     approves under a custom image root instead.</li>
+ * </ul>
+ * Screencast frame sequences are not promoted, since only their mismatching frames are captured.
+ */
+public class BaselineApprover {
+
+    // Logger to log messages and errors to the console
+    private static final Logger LOGGER = Logger.getLogger(BaselineApprover.class.getName());
+
+    // Default image root of each engine
+    private static final String IMAGE_DIR = System.getProperty("user.dir") + "/src/main/resources/%s/images/";
+
+    private final List<PathMatcher> nameMatchers = new ArrayList<>();
+    private boolean failed;
+    private boolean all;
+
+    // Totals of the run, updated by the approval threads
+    private final AtomicLong approved = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong screenshotBytes = new AtomicLong();
+    private final AtomicLong baselineBytes = new AtomicLong();
+
+    /**
+     * main approves the screenshots selected by the command line filters and prints a summary.
+     *
+     * @param args The command line options and name filters.
+     */
+    public static void main(String[] args) {
+        final BaselineApprover approver = new BaselineApprover();
+        final List<String> imageDirs = new ArrayList<>();
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                imageDirs.add(String.format(IMAGE_DIR, arg.substring("--engine=".length())));
+            } else if (arg.startsWith("--imageDir=")) {
+                imageDirs.add(arg.substring("--imageDir=".length()));
+            } else if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(arg.substring("--threads=".length()));
+            } else if (arg.equals("--failed")) {
+                approver.failed = true;
+            } else if (arg.equals("--all")) {
+                approver.all = true;
+            } else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unrecognised argument: " + arg);
+            } else {
+                approver.nameMatchers.add(FileSystems.getDefault().getPathMatcher("glob:" + arg));
+            }
+        }
+        if (!approver.all && !approver.failed && approver.nameMatchers.isEmpty()) {
+            throw new IllegalArgumentException("Select screenshots with names, globs, --failed, or --all.");
+        }
+        if (imageDirs.isEmpty()) {
+            imageDirs.add(String.format(IMAGE_DIR, "selenium"));
+            imageDirs.add(String.format(IMAGE_DIR, "playwright"));
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            approver.approve(imageDirs, executor);
+        } finally {
+            executor.shutdown();
+        }
+        if (approver.errors.get() > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * approve promotes the selected screenshots of every image root on the given executor and
+     * logs the throughput and size summary.
+     *
+     * @param imageDirs The image roots holding the screenshot, baseline, and difference directories.
+     * @param executor  The executor the screenshots are approved on.
+     */
+    private void approve(List<String> imageDirs, ExecutorService executor) {
+        final long start = System.nanoTime();
+        final List<Future<?>> approvals = new ArrayList<>();
+        for (String imageDir : imageDirs) {
+            final Path root = Paths.get(imageDir);
+            final File[] screenshots = root.resolve("screenshot").toFile().listFiles((dir, file) -> file.endsWith(".png"));
+            if (screenshots == null) {
+                LOGGER.log(Level.WARNING, "No screenshot directory under: " + imageDir);
+                continue;
+            }
+            Arrays.sort(screenshots);
+            for (File screenshot : screenshots) {
+                final String name = screenshot.getName().substring(0, screenshot.getName().length() - ".png".length());
+                if (isSelected(root, name)) {
+                    approvals.add(executor.submit(() -> approve(root, name, screenshot)));
+                }
+            }
+        }
+
+        // Waits for every approval; approvals count their own errors, this only catches unexpected ones
+        for (Future<?> approval : approvals) {
+            try {
+                approval.get();
+            } catch (Exception ex) {
+                errors.incrementAndGet();
+                LOGGER.log(Level.SEVERE, "Error while approving baseline: " + ex.getMessage(), ex);
+            }
+        }
+
+        final double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        LOGGER.log(Level.INFO, String.format("%nApproved: %d, errors: %d, elapsed: %.2f s, throughput: %.1f images/s%n"
+                        + "Screenshots: %.1f KiB, baselines written: %.1f KiB (%+.1f%%)",
+                approved.get(), errors.get(), elapsedSeconds, approved.get() / Math.max(elapsedSeconds, 1e-9),
+                screenshotBytes.get() / 1024.0, baselineBytes.get() / 1024.0,
+                screenshotBytes.get() == 0 ? 0 : (baselineBytes.get() - screenshotBytes.get()) * 100.0 / screenshotBytes.get()));
+    }
+
+    /**
+     * isSelected tells whether a screenshot matches the command line filters.
+     */
+    private boolean isSelected(Path root, String name) {
+        if (all) {
+            return true;
+        }
+        if (failed && FailureMarkers.hasFailed(root.resolve("difference").toFile(), name)) {
+            return true;
+        }
+        for (PathMatcher nameMatcher : nameMatchers) {
+            if (nameMatcher.matches(Paths.get(name))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * approve promotes one screenshot to its baseline and rebuilds the data derived from the baseline.
+     */
+    private void approve(Path root, String name, File screenshot) {
+        final Path baseline = root.resolve("baseline").resolve(name + ".png");
+        final Path temporary = root.resolve("baseline").resolve("." + name + ".png.tmp");
+        try {
+            final BufferedImage image = ImageIO.read(screenshot);
+            if (image == null) {
+                throw new IOException("Not a decodable image: " + screenshot);
+            }
+
+            // Re-encodes to the canonical profile, then replaces the baseline in one rename
+            final BufferedImage canonical = toCanonical(image);
+            Files.createDirectories(baseline.getParent());
+            if (!ImageIO.write(canonical, "png", temporary.toFile())) {
+                throw new IOException("No PNG writer available");
+            }
+            try {
+                Files.move(temporary, baseline, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temporary, baseline, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            // Rebuilds the sidecar from the decoded pixels and drops the data that no longer applies
+            ImageSidecar.of(canonical).writeFor(baseline.toFile());
+            Files.deleteIfExists(RenderFingerprint.fingerprintFile(baseline.toFile()).toPath());
+            Files.deleteIfExists(root.resolve("difference").resolve(name + ".png"));
+            Files.deleteIfExists(FailureMarkers.markerFile(root.resolve("difference").toFile(), name).toPath());
+
+            approved.incrementAndGet();
+            screenshotBytes.addAndGet(screenshot.length());
+            baselineBytes.addAndGet(Files.size(baseline));
+            LOGGER.log(Level.INFO, "Baseline approved: " + baseline);
+        } catch (IOException | RuntimeException ex) {
+            errors.incrementAndGet();
+            LOGGER.log(Level.SEVERE, "Error while approving " + screenshot + ": " + ex.getMessage(), ex);
+            try {
+                Files.deleteIfExists(temporary);
+            } catch (IOException cleanup) {
+                LOGGER.log(Level.WARNING, "Error while deleting " + temporary + ": " + cleanup.getMessage(), cleanup);
+            }
+        }
+    }
+
+    /**
+     * toCanonical converts an image to 8-bit sRGB, keeping the alpha channel only when a pixel is not
+     * fully opaque. The PNG writer then produces no palette, gamma, or text chunks.
+     */
+    private static BufferedImage toCanonical(BufferedImage image) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int[] row = new int[width];
+        boolean translucent = false;
+        for (int y = 0; y < height && !translucent; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                if ((row[x] >>> 24) != 0xFF) {
+                    translucent = true;
+                    break;
+                }
+            }
+        }
+
+        final int type = translucent ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        if (image.getType() == type) {
+            return image;
+        }
+        // Copies the pixels row by row, so that no compositing alters their values
+        final BufferedImage canonical = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            canonical.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return canonical;
+    }
+
+}
@@ -0,0 +1,62 @@
+package qa.jaga.core.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * BenchmarkOptions class parses the --name=value command line options of the benchmark tools.
+ */
+final class BenchmarkOptions {
+
+    private BenchmarkOptions() {
+    }
+
+    /**
+     * parse converts options of the form --name=value into a map. A bare --name is read as "true".
+     *
+     * @param args The command line arguments.
+     * @return The options keyed by name.
+     */
+    static Map<String, String> parse(String[] args) {
+        final Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unrecognised argument: " + arg);
+            }
+            final int separator = arg.indexOf('=');
+            if (separator > 0) {
+                options.put(arg.substring(2, separator), arg.substring(separator + 1));
+            } else {
+                options.put(arg.substring(2), "true");
+            }
+        }
+        return options;
+    }
+
+    /**
+     * positiveInt reads an option that must be a positive integer.
+     *
+     * @param options      The parsed options.
+     * @param name         The name of the option.
+     * @param defaultValue The value used when the option is missing.
+     * @param usage        The usage message of the tool, reported when the value is invalid.
+     * @return The value of the option.
+     * @throws IllegalArgumentException if the value is not a positive integer.
+     */
+    static int positiveInt(Map<String, String> options, String name, int defaultValue, String usage) {
+        final String value = options.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            final int parsed = Integer.parseInt(value);
+            if (parsed > 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException ex) {
+            // Reported below together with non-positive values
+        }
+        throw new IllegalArgumentException("--" + name + " must be a positive integer, got: " + value + "\n" + usage);
+    }
+
+}
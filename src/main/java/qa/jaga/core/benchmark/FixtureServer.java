@@ -0,0 +1,282 @@
+package qa.jaga.core.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * FixtureServer class is an embedded HTTP server that serves synthetic and recorded fixture pages
+ * on the loopback interface, so that capture and comparison throughput can be measured without
+ * depending on live sites or network jitter.
+ * <p>
+ * Routes:
+ * <ul>
+ *     <li>{@code /page/<id>} - a deterministic synthetic page generated from the id. The query parameters
+ *     {@code latency} (milliseconds), {@code height} (pixels) and {@code dynamic} (true/false)
+ *     override the server defaults for a single request.</li>
+ *     <li>{@code /fixture/<file>} - a recorded page or asset served from the fixture directory.</li>
+ * </ul>
+ */
+public class FixtureServer implements AutoCloseable {
+
+    // Logger to log messages and errors to the console
+    private static final Logger LOGGER = Logger.getLogger(FixtureServer.class.getName());
+
+    // Colours used for the blocks of the synthetic pages
+    private static final String[] PALETTE = {"#1f77b4", "#ff7f0e", "#2ca02c", "#d62728", "#9467bd", "#8c564b", "#e377c2", "#7f7f7f"};
+
+    // Content types of the recorded fixture files, keyed by file extension
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+
+    static {
+        CONTENT_TYPES.put("html", "text/html; charset=utf-8");
+        CONTENT_TYPES.put("htm", "text/html; charset=utf-8");
+        CONTENT_TYPES.put("css", "text/css; charset=utf-8");
+        CONTENT_TYPES.put("js", "application/javascript; charset=utf-8");
+        CONTENT_TYPES.put("png", "image/png");
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+        CONTENT_TYPES.put("jpeg", "image/jpeg");
+        CONTENT_TYPES.put("svg", "image/svg+xml");
+    }
+
+    // Height of a single block of the synthetic pages in pixels
+    private static final int BLOCK_HEIGHT = 200;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long defaultLatencyMillis;
+    private final int defaultPageHeight;
+    private final boolean defaultDynamic;
+    private final Path fixtureDir;
+
+    /**
+     * Constructor creates a fixture server bound to the loopback interface. The server is not
+     * started until {@link #start()} is called.
+     *
+     * @param port                 The port to listen on, or 0 to pick a free port.
+     * @param defaultLatencyMillis The delay added before every response, in milliseconds.
+     * @param defaultPageHeight    The height of the synthetic pages, in pixels.
+     * @param defaultDynamic       Whether the synthetic pages contain content that changes on every request.
+     * @param fixtureDir           The directory holding recorded fixtures, or null to serve synthetic pages only.
+     * @throws IOException if the server cannot bind to the port.
+     */
+    public FixtureServer(int port, long defaultLatencyMillis, int defaultPageHeight, boolean defaultDynamic, Path fixtureDir) throws IOException {
+        this.defaultLatencyMillis = defaultLatencyMillis;
+        this.defaultPageHeight = defaultPageHeight;
+        this.defaultDynamic = defaultDynamic;
+        this.fixtureDir = fixtureDir;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+
+        // Latency is simulated by sleeping, so each request gets its own thread
+        this.executor = Executors.newCachedThreadPool();
+        this.server.setExecutor(executor);
+        this.server.createContext("/page/", this::handlePage);
+        this.server.createContext("/fixture/", this::handleFixture);
+    }
+
+    /**
+     * start starts serving requests.
+     *
+     * @return The base URL of the server, without a trailing slash.
+     */
+    public String start() {
+        server.start();
+        LOGGER.log(Level.INFO, "Fixture server started at: " + getBaseUrl());
+        return getBaseUrl();
+    }
+
+    /**
+     * getBaseUrl returns the base URL of the server, without a trailing slash.
+     *
+     * @return The base URL, e.g. http://127.0.0.1:8080
+     */
+    public String getBaseUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    /**
+     * close stops the server and releases its threads.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+        LOGGER.log(Level.INFO, "Fixture server stopped.");
+    }
+
+    /**
+     * handlePage serves a synthetic page generated from the id in the request path.
+     *
+     * @param exchange The HTTP exchange to respond to.
+     * @throws IOException if the response cannot be written.
+     */
+    private void handlePage(HttpExchange exchange) throws IOException {
+        final URI uri = exchange.getRequestURI();
+        final Map<String, String> query = parseQuery(uri.getRawQuery());
+        final String id = uri.getPath().substring("/page/".length());
+
+        final long latency = parseLong(query.get("latency"), defaultLatencyMillis);
+        final int height = (int) parseLong(query.get("height"), defaultPageHeight);
+        final boolean dynamic = query.containsKey("dynamic") ? Boolean.parseBoolean(query.get("dynamic")) : defaultDynamic;
+
+        simulateLatency(latency);
+        respond(exchange, 200, "text/html; charset=utf-8", syntheticPage(id, height, dynamic).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * handleFixture serves a recorded file from the fixture directory.
+     *
+     * @param exchange The HTTP exchange to respond to.
+     * @throws IOException if the response cannot be written.
+     */
+    private void handleFixture(HttpExchange exchange) throws IOException {
+        final URI uri = exchange.getRequestURI();
+        final String name = uri.getPath().substring("/fixture/".length());
+
+        // Rejects requests when no fixture directory is configured or the path escapes it
+        final Path file = fixtureDir == null ? null : fixtureDir.resolve(name).normalize();
+        if (file == null || !file.startsWith(fixtureDir) || !Files.isRegularFile(file)) {
+            respond(exchange, 404, "text/plain; charset=utf-8", ("Fixture not found: " + name).getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+
+        simulateLatency(parseLong(parseQuery(uri.getRawQuery()).get("latency"), defaultLatencyMillis));
+        respond(exchange, 200, contentType(file), Files.readAllBytes(file));
+    }
+
+    /**
+     * syntheticPage generates a page whose layout depends only on the id, so the same id
+     * always renders the same, unless dynamic content is requested.
+     *
+     * @param id      The page id.
+     * @param height  The page height in pixels.
+     * @param dynamic Whether to include content that changes on every request.
+     * @return The HTML of the page.
+     */
+    private String syntheticPage(String id, int height, boolean dynamic) {
+        final int seed = id.hashCode() & 0x7fffffff;
+        final StringBuilder html = new StringBuilder(4096)
+                .append("<!DOCTYPE html><html><head><meta charset=\"utf-8\"><title>Fixture ").append(id).append("</title>")
+                .append("<style>body{margin:0;font-family:sans-serif}")
+                .append(".block{height:").append(BLOCK_HEIGHT).append("px;padding:24px;box-sizing:border-box;color:#fff}")
+                .append("</style></head><body>")
+                .append("<h1 style=\"margin:0;padding:24px\">Fixture page ").append(id).append("</h1>");
+
+        for (int block = 0; block * BLOCK_HEIGHT < height; block++) {
+            html.append("<div class=\"block\" style=\"background:").append(PALETTE[(seed + block) % PALETTE.length])
+                    .append(";width:").append(50 + (seed + block * 7) % 50).append("%\">")
+                    .append("<h2>Section ").append(block + 1).append("</h2>")
+                    .append("<p>Synthetic content for page ").append(id).append(", section ").append(block + 1).append(".</p>")
+                    .append("</div>");
+        }
+
+        if (dynamic) {
+            html.append("<div id=\"dynamic\" style=\"padding:24px\">Rendered at ").append(System.nanoTime()).append("</div>");
+        }
+        return html.append("</body></html>").toString();
+    }
+
+    /**
+     * respond writes a complete response with the given status, content type, and body.
+     */
+    private void respond(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(body);
+        }
+    }
+
+    /**
+     * simulateLatency delays the response by the given number of milliseconds.
+     */
+    private void simulateLatency(long latencyMillis) {
+        if (latencyMillis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(latencyMillis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * contentType guesses the content type of a fixture file from its extension.
+     */
+    private String contentType(Path file) {
+        final String name = file.getFileName().toString().toLowerCase();
+        final String extension = name.substring(name.lastIndexOf('.') + 1);
+        return CONTENT_TYPES.getOrDefault(extension, "application/octet-stream");
+    }
+
+    /**
+     * parseQuery splits a raw query string into its parameters.
+     */
+    private static Map<String, String> parseQuery(String rawQuery) {
+        final Map<String, String> parameters = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return parameters;
+        }
+        for (String pair : rawQuery.split("&")) {
+            final int separator = pair.indexOf('=');
+            if (separator > 0) {
+                parameters.put(pair.substring(0, separator), pair.substring(separator + 1));
+            } else {
+                parameters.put(pair, "");
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * parseLong parses a query parameter, falling back to the default when it is missing or invalid.
+     */
+    private static long parseLong(String value, long defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException ex) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * main starts a standalone fixture server and keeps it running until the JVM is stopped.
+     * Options: --port=8080 --latency=20 --height=3000 --dynamic=false --fixtures=path/to/recorded/pages
+     *
+     * @param args The command line options.
+     * @throws IOException if the server cannot bind to the port.
+     */
+    public static void main(String[] args) throws IOException {
+        final Map<String, String> options = BenchmarkOptions.parse(args);
+        final String fixtures = options.get("fixtures");
+        final FixtureServer fixtureServer = new FixtureServer(
+                Integer.parseInt(options.getOrDefault("port", "8080")),
+                Long.parseLong(options.getOrDefault("latency", "20")),
+                Integer.parseInt(options.getOrDefault("height", "3000")),
+                Boolean.parseBoolean(options.getOrDefault("dynamic", "false")),
+                fixtures == null ? null : Paths.get(fixtures).toAbsolutePath().normalize());
+        Runtime.getRuntime().addShutdownHook(new Thread(fixtureServer::close));
+        fixtureServer.start();
+    }
+
+}
@@ -0,0 +1,166 @@
+package qa.jaga.core.benchmark;
+
+import com.microsoft.playwright.Browser;
+import com.microsoft.playwright.BrowserType;
+import com.microsoft.playwright.Page;
+import com.microsoft.playwright.Playwright;
+import qa.jaga.core.playwright.ScreenshotUtility;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ThroughputBenchmark class replays a generated list of fixture URLs through the Playwright
+ * ScreenshotUtility capture and compare paths, fully offline with headless Chromium, and reports
+ * pages per minute and the latency of each phase (navigate, capture, compare).
+ * <p>
+ * Options: --pages=200 --unique=20 --latency=20 --height=3000 --dynamic=false --output=target/benchmark
+ * <p>
+ * Baselines for the unique pages are seeded in a warm-up pass under the output directory, so the
+ * project baselines are never touched.
+ */
+public class ThroughputBenchmark {
+
+    // Logger to log messages and errors to the console
+    private static final Logger LOGGER = Logger.getLogger(ThroughputBenchmark.class.getName());
+
+    // Usage message reported for invalid options
+    private static final String USAGE = "Usage: ThroughputBenchmark [--pages=200] [--unique=20] [--latency=20] [--height=3000]"
+            + " [--dynamic=false] [--output=target/benchmark]";
+
+    /**
+     * main runs the benchmark with the given command line options and prints the report.
+     *
+     * @param args The command line options.
+     * @throws IOException if the fixture server or the output directory cannot be set up.
+     * @throws IllegalArgumentException if --pages or --unique is not a positive integer.
+     */
+    public static void main(String[] args) throws IOException {
+        final Map<String, String> options = BenchmarkOptions.parse(args);
+        final int pages = BenchmarkOptions.positiveInt(options, "pages", 200, USAGE);
+        final int unique = Math.min(pages, BenchmarkOptions.positiveInt(options, "unique", 20, USAGE));
+        final Path imageDir = Paths.get(options.getOrDefault("output", System.getProperty("user.dir") + "/target/benchmark")).resolve("images");
+
+        try (FixtureServer fixtureServer = new FixtureServer(0,
+                Long.parseLong(options.getOrDefault("latency", "20")),
+                Integer.parseInt(options.getOrDefault("height", "3000")),
+                Boolean.parseBoolean(options.getOrDefault("dynamic", "false")),
+                null);
+             Playwright playwright = Playwright.create()) {
+
+            final String baseUrl = fixtureServer.start();
+            final ScreenshotUtility screenshotUtility = new ScreenshotUtility(imageDir.toString());
+            final Browser browser = playwright.chromium().launch(new BrowserType.LaunchOptions().setHeadless(true));
+            final Page page = browser.newContext().newPage();
+
+            // Seeds one baseline per unique page so that the measured pass exercises the compare path
+            for (int id = 0; id < unique; id++) {
+                page.navigate(baseUrl + "/page/" + id);
+                screenshotUtility.takePageScreenshot(page, imageName(id));
+                Files.copy(imageDir.resolve("screenshot/" + imageName(id) + ".png"),
+                        imageDir.resolve("baseline/" + imageName(id) + ".png"), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            // Replays the generated URL list, timing each phase
+            final PhaseStats navigate = new PhaseStats("navigate", pages);
+            final PhaseStats capture = new PhaseStats("capture", pages);
+            final PhaseStats compare = new PhaseStats("compare", pages);
+            int mismatches = 0;
+            final long start = System.nanoTime();
+
+            for (int i = 0; i < pages; i++) {
+                final String name = imageName(i % unique);
+
+                long phaseStart = System.nanoTime();
+                page.navigate(baseUrl + "/page/" + (i % unique) + "?run=" + i);
+                navigate.record(System.nanoTime() - phaseStart);
+
+                phaseStart = System.nanoTime();
+                screenshotUtility.takePageScreenshot(page, name);
+                capture.record(System.nanoTime() - phaseStart);
+
+                phaseStart = System.nanoTime();
+                if (!screenshotUtility.areImagesEqual(name, name)) {
+                    mismatches++;
+                }
+                compare.record(System.nanoTime() - phaseStart);
+            }
+
+            final long elapsedNanos = System.nanoTime() - start;
+            browser.close();
+            printReport(pages, mismatches, elapsedNanos, Arrays.asList(navigate, capture, compare));
+        }
+    }
+
+    /**
+     * imageName returns the name of the image captured for the given fixture page id.
+     */
+    private static String imageName(int id) {
+        return "fixture_" + id;
+    }
+
+    /**
+     * printReport prints the throughput of the run and the latency distribution of each phase.
+     */
+    private static void printReport(int pages, int mismatches, long elapsedNanos, List<PhaseStats> phases) {
+        final double elapsedSeconds = elapsedNanos / 1e9;
+        final StringBuilder report = new StringBuilder()
+                .append(String.format("%nPages: %d, mismatches: %d, elapsed: %.1f s, throughput: %.1f pages/min%n",
+                        pages, mismatches, elapsedSeconds, pages / elapsedSeconds * 60))
+                .append(String.format("%-10s %10s %10s %10s %10s%n", "phase", "avg ms", "p50 ms", "p95 ms", "max ms"));
+        for (PhaseStats phase : phases) {
+            report.append(phase.summary()).append(System.lineSeparator());
+        }
+        LOGGER.log(Level.INFO, report.toString());
+    }
+
+    /**
+     * PhaseStats class collects the latencies of one phase of the benchmark.
+     */
+    private static final class PhaseStats {
+
+        private final String name;
+        private final List<Long> samples;
+
+        private PhaseStats(String name, int expectedSamples) {
+            this.name = name;
+            this.samples = new ArrayList<>(expectedSamples);
+        }
+
+        private void record(long nanos) {
+            samples.add(nanos);
+        }
+
+        private String summary() {
+            final long[] sorted = samples.stream().mapToLong(Long::longValue).sorted().toArray();
+            if (sorted.length == 0) {
+                return String.format("%-10s %10s", name, "-");
+            }
+            return String.format("%-10s %10.1f %10.1f %10.1f %10.1f", name,
+                    toMillis((long) Arrays.stream(sorted).average().orElse(0)),
+                    toMillis(percentile(sorted, 50)),
+                    toMillis(percentile(sorted, 95)),
+                    toMillis(sorted[sorted.length - 1]));
+        }
+
+        private static long percentile(long[] sorted, int percentile) {
+            final int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(0, index)];
+        }
+
+        private static double toMillis(long nanos) {
+            return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+    }
+
+}
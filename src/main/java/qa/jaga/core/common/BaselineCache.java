@@ -0,0 +1,81 @@
+package qa.jaga.core.common;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * BaselineCache class keeps decoded baseline images in memory so that repeated comparisons against
+ * the same baseline, e.g. in the comparison service, skip reading and decoding the PNG file.
+ * An entry is reloaded when the file's size or modification time changes, and entries are held
+ * through soft references so the cache gives memory back under pressure.
+ * The cached images are shared and must be treated as read-only.
+ */
+public final class BaselineCache {
+
+    // Logger to log messages and errors to the console
+    private static final Logger LOGGER = Logger.getLogger(BaselineCache.class.getName());
+
+    // Decoded baselines keyed by absolute file path
+    private static final Map<String, Entry> ENTRIES = new ConcurrentHashMap<>();
+
+    private BaselineCache() {
+    }
+
+    /**
+     * read returns the decoded baseline image, from the cache when the file has not changed.
+     *
+     * @param file The baseline image file.
+     * @return The decoded image, or null if the file does not exist or cannot be decoded.
+     */
+    public static BufferedImage read(File file) {
+        final String key = file.getAbsolutePath();
+        final long lastModified = file.lastModified();
+        final long length = file.length();
+
+        // Returns the cached image when the file is unchanged and the image has not been collected
+        final Entry entry = ENTRIES.get(key);
+        if (entry != null && entry.lastModified == lastModified && entry.length == length) {
+            final BufferedImage cached = entry.image.get();
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        try {
+            final BufferedImage image = ImageIO.read(file);
+            if (image != null) {
+                ENTRIES.put(key, new Entry(image, lastModified, length));
+            }
+            return image;
+        } catch (IOException ex) {
+            // Logs any errors that occur while reading the baseline
+            LOGGER.log(Level.SEVERE, "Error while reading baseline " + key + ": " + ex.getMessage(), ex);
+            ENTRIES.remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Entry class holds a decoded baseline together with the file attributes it was decoded from.
+     */
+    private static final class Entry {
+
+        private final SoftReference<BufferedImage> image;
+        private final long lastModified;
+        private final long length;
+
+        private Entry(BufferedImage image, long lastModified, long length) {
+            this.image = new SoftReference<>(image);
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+
+}
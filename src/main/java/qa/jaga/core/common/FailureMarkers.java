@@ -0,0 +1,71 @@
+package qa.jaga.core.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * FailureMarkers class records which baselines failed their last comparison, as empty
+ * {@code <name>.failed} marker files in the difference directory. Every comparison path records its
+ * outcome, including those that fail without writing a difference image, so tools such as the baseline
+ * approver can select the failed baselines reliably. A marker is removed when its baseline passes again,
+ * and the regression tests clear the difference directory, and so the markers, when a run starts.
+ */
+public final class FailureMarkers {
+
+    // Logger to log messages and errors to the console
+    private static final Logger LOGGER = Logger.getLogger(FailureMarkers.class.getName());
+
+    // Extension of the marker files stored in the difference directory
+    private static final String EXTENSION = ".failed";
+
+    private FailureMarkers() {
+    }
+
+    /**
+     * record stores the outcome of a comparison: it creates the marker of a failed baseline and
+     * removes the marker of a passed one.
+     *
+     * @param differenceDir The difference directory of the image root.
+     * @param baseImage     The name of the baseline image.
+     * @param match         The outcome of the comparison.
+     */
+    public static void record(String differenceDir, String baseImage, boolean match) {
+        final File markerFile = markerFile(new File(differenceDir), baseImage);
+        try {
+            if (match) {
+                Files.deleteIfExists(markerFile.toPath());
+            } else if (!markerFile.exists()) {
+                Files.createDirectories(markerFile.getParentFile().toPath());
+                Files.createFile(markerFile.toPath());
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Error while recording comparison outcome of " + baseImage + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * hasFailed tells whether the baseline failed its last comparison.
+     *
+     * @param differenceDir The difference directory of the image root.
+     * @param baseImage     The name of the baseline image.
+     * @return true if a failure marker exists.
+     */
+    public static boolean hasFailed(File differenceDir, String baseImage) {
+        return markerFile(differenceDir, baseImage).isFile();
+    }
+
+    /**
+     * markerFile returns the failure marker of the given baseline.
+     *
+     * @param differenceDir The difference directory of the image root.
+     * @param baseImage     The name of the baseline image.
+     * @return The marker file in the difference directory.
+     */
+    public static File markerFile(File differenceDir, String baseImage) {
+        return new File(differenceDir, baseImage + EXTENSION);
+    }
+
+}
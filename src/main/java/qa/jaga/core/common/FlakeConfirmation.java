@@ -0,0 +1,181 @@
+package qa.jaga.core.common;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * FlakeConfirmation class tells render flake from real regressions after a failed comparison without
+ * recapturing the whole page: it finds the bounding boxes of the differing pixels, re-captures only
+ * those regions a few times with a short delay, and compares them in memory with the baseline.
+ * The mismatch is a flake if any attempt renders every region like the baseline.
+ * <p>
+ * Configuration (system properties):
+ * <ul>
+ *     <li>{@code visual.confirmAttempts} - number of region re-captures, 0 to disable confirmation (default 3).</li>
+ *     <li>{@code visual.confirmDelayMillis} - delay before each re-capture (default 250).</li>
+ * </ul>
+ */
+public final class FlakeConfirmation {
+
+    // Logger to log messages and errors to the console
+    private static final Logger LOGGER = Logger.getLogger(FlakeConfirmation.class.getName());
+
+    private static final int ATTEMPTS = Integer.getInteger("visual.confirmAttempts", 3);
+    private static final long DELAY_MILLIS = Long.getLong("visual.confirmDelayMillis", 250L);
+
+    // Side of the grid cells differing pixels are grouped in; neighbouring cells form one region
+    private static final int CELL_SIZE = 16;
+
+    // Above this share of the page, re-capturing the regions would not be cheaper than a full recapture
+    private static final double MAX_AREA_FRACTION = 0.25;
+
+    private FlakeConfirmation() {
+    }
+
+    /**
+     * isEnabled tells whether mismatches are confirmed by re-capturing their regions.
+     *
+     * @return true if at least one re-capture attempt is configured.
+     */
+    public static boolean isEnabled() {
+        return ATTEMPTS > 0;
+    }
+
+    /**
+     * isFlake re-captures the regions where the screenshot differs from the baseline and reports whether
+     * the difference went away.
+     *
+     * @param baseline     The baseline image.
+     * @param screenshot   The screenshot that failed the comparison.
+     * @param alignment    The multiple region coordinates are aligned to, i.e. the device pixel ratio,
+     *                     so regions map to whole CSS pixels.
+     * @param recapture    Captures the given region of the page, in screenshot pixel coordinates.
+     * @param regionsEqual Compares a baseline region with its re-capture, with the engine's tolerance.
+     * @return true if a re-capture matched the baseline in every region, false if the mismatch persisted
+     * or could not be confirmed by regions.
+     */
+    public static boolean isFlake(BufferedImage baseline, BufferedImage screenshot, int alignment,
+                                  Function<Rectangle, BufferedImage> recapture,
+                                  BiPredicate<BufferedImage, BufferedImage> regionsEqual) {
+        if (!isEnabled() || baseline == null || screenshot == null) {
+            return false;
+        }
+
+        // A different page size is a layout change, which region re-captures cannot confirm
+        if (baseline.getWidth() != screenshot.getWidth() || baseline.getHeight() != screenshot.getHeight()) {
+            return false;
+        }
+
+        final List<Rectangle> regions = findRegions(baseline, screenshot, Math.max(1, alignment));
+        long area = 0;
+        for (Rectangle region : regions) {
+            area += (long) region.width * region.height;
+        }
+        if (regions.isEmpty() || area > MAX_AREA_FRACTION * baseline.getWidth() * baseline.getHeight()) {
+            return false;
+        }
+
+        final long start = System.nanoTime();
+        for (int attempt = 1; attempt <= ATTEMPTS; attempt++) {
+            try {
+                Thread.sleep(DELAY_MILLIS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+
+            boolean allRegionsEqual = true;
+            for (Rectangle region : regions) {
+                final BufferedImage captured = recapture.apply(region);
+                final BufferedImage expected = baseline.getSubimage(region.x, region.y, region.width, region.height);
+                if (captured == null || captured.getWidth() != region.width || captured.getHeight() != region.height
+                        || !regionsEqual.test(expected, captured)) {
+                    allRegionsEqual = false;
+                    break;
+                }
+            }
+
+            if (allRegionsEqual) {
+                LOGGER.log(Level.INFO, "Mismatch in " + regions.size() + " regions was render flake, confirmed on attempt "
+                        + attempt + " in " + (System.nanoTime() - start) / 1_000_000 + " ms.");
+                return true;
+            }
+        }
+
+        LOGGER.log(Level.INFO, "Mismatch in " + regions.size() + " regions persisted over " + ATTEMPTS + " attempts in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms.");
+        return false;
+    }
+
+    /**
+     * findRegions groups the differing pixels into grid cells and returns the bounding box of each group
+     * of neighbouring cells, aligned outwards to the given multiple and clipped to the image.
+     */
+    static List<Rectangle> findRegions(BufferedImage baseline, BufferedImage screenshot, int alignment) {
+        final int width = baseline.getWidth();
+        final int height = baseline.getHeight();
+        final int columns = (width + CELL_SIZE - 1) / CELL_SIZE;
+        final int rows = (height + CELL_SIZE - 1) / CELL_SIZE;
+        final boolean[] differs = new boolean[columns * rows];
+
+        // Marks the cells containing at least one differing pixel, one raster row at a time
+        final int[] baselineRow = new int[width];
+        final int[] screenshotRow = new int[width];
+        for (int y = 0; y < height; y++) {
+            baseline.getRGB(0, y, width, 1, baselineRow, 0, width);
+            screenshot.getRGB(0, y, width, 1, screenshotRow, 0, width);
+            final int cellRow = (y / CELL_SIZE) * columns;
+            for (int x = 0; x < width; x++) {
+                if (baselineRow[x] != screenshotRow[x]) {
+                    differs[cellRow + x / CELL_SIZE] = true;
+                }
+            }
+        }
+
+        // Flood fills groups of neighbouring cells, including diagonal neighbours
+        final List<Rectangle> regions = new ArrayList<>();
+        final int[] stack = new int[columns * rows];
+        for (int start = 0; start < differs.length; start++) {
+            if (!differs[start]) {
+                continue;
+            }
+            int minColumn = columns, minRow = rows, maxColumn = -1, maxRow = -1;
+            int size = 0;
+            stack[size++] = start;
+            differs[start] = false;
+            while (size > 0) {
+                final int cell = stack[--size];
+                final int column = cell % columns;
+                final int row = cell / columns;
+                minColumn = Math.min(minColumn, column);
+                maxColumn = Math.max(maxColumn, column);
+                minRow = Math.min(minRow, row);
+                maxRow = Math.max(maxRow, row);
+                for (int neighbourRow = Math.max(0, row - 1); neighbourRow <= Math.min(rows - 1, row + 1); neighbourRow++) {
+                    for (int neighbourColumn = Math.max(0, column - 1); neighbourColumn <= Math.min(columns - 1, column + 1); neighbourColumn++) {
+                        final int neighbour = neighbourRow * columns + neighbourColumn;
+                        if (differs[neighbour]) {
+                            differs[neighbour] = false;
+                            stack[size++] = neighbour;
+                        }
+                    }
+                }
+            }
+
+            // Aligns the box outwards so that it maps to whole CSS pixels
+            final int x = (minColumn * CELL_SIZE) / alignment * alignment;
+            final int y = (minRow * CELL_SIZE) / alignment * alignment;
+            final int right = Math.min(width, ((maxColumn + 1) * CELL_SIZE + alignment - 1) / alignment * alignment);
+            final int bottom = Math.min(height, ((maxRow + 1) * CELL_SIZE + alignment - 1) / alignment * alignment);
+            regions.add(new Rectangle(x, y, right - x, bottom - y));
+        }
+        return regions;
+    }
+
+}
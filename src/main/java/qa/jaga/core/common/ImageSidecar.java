@@ -0,0 +1,246 @@
+package qa.jaga.core.common;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * ImageSidecar class holds cheap metadata of an image: an xxHash64 digest of its decoded pixels,
+ * a 64-bit perceptual difference hash, and its dimensions. Baselines carry this metadata in a
+ * {@code <name>.sidecar} file so that a comparison can pass on equal digests, or fail fast on a large
+ * perceptual distance, without a full pixel diff. A sidecar is rebuilt whenever its baseline changes.
+ */
+public final class ImageSidecar {
+
+    // Logger to log messages and errors to the console
+    private static final Logger LOGGER = Logger.getLogger(ImageSidecar.class.getName());
+
+    // Perceptual hash distance above which images are considered different without a pixel diff
+    public static final int FAIL_FAST_DISTANCE = Integer.getInteger("visual.failFastDistance", 24);
+
+    // Extension of the sidecar files stored next to the baselines
+    private static final String EXTENSION = ".sidecar";
+
+    // The perceptual hash compares the mean luminance of neighbouring cells of a 9x8 grid
+    private static final int GRID_COLUMNS = 9;
+    private static final int GRID_ROWS = 8;
+
+    // Content stamps of the baselines, keyed by absolute path, reused while size and modification time are unchanged
+    private static final Map<String, Stamp> STAMPS = new ConcurrentHashMap<>();
+
+    private final long digest;
+    private final long perceptualHash;
+    private final int width;
+    private final int height;
+
+    private ImageSidecar(long digest, long perceptualHash, int width, int height) {
+        this.digest = digest;
+        this.perceptualHash = perceptualHash;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * of computes the sidecar metadata of an image in a single pass over its raster, one row at a time.
+     *
+     * @param image The decoded image.
+     * @return The metadata of the image.
+     */
+    public static ImageSidecar of(BufferedImage image) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final XxHash64 xxHash64 = new XxHash64();
+        final double[] luminance = new double[GRID_COLUMNS * GRID_ROWS];
+        final int[] cellPixels = new int[GRID_COLUMNS * GRID_ROWS];
+        final int[] row = new int[width];
+
+        // Maps every column to its grid column once, instead of once per pixel
+        final int[] gridColumn = new int[width];
+        for (int x = 0; x < width; x++) {
+            gridColumn[x] = (int) ((long) x * GRID_COLUMNS / width);
+        }
+
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            xxHash64.update(row, 0, width);
+
+            final int cellRow = (int) ((long) y * GRID_ROWS / height) * GRID_COLUMNS;
+            for (int x = 0; x < width; x++) {
+                final int argb = row[x];
+                final int cell = cellRow + gridColumn[x];
+                luminance[cell] += 0.299 * ((argb >> 16) & 0xFF) + 0.587 * ((argb >> 8) & 0xFF) + 0.114 * (argb & 0xFF);
+                cellPixels[cell]++;
+            }
+        }
+
+        // Sets one bit per pair of horizontally neighbouring cells: 1 if the luminance increases
+        long perceptualHash = 0;
+        for (int cellY = 0; cellY < GRID_ROWS; cellY++) {
+            for (int cellX = 0; cellX < GRID_COLUMNS - 1; cellX++) {
+                final int left = cellY * GRID_COLUMNS + cellX;
+                final double leftMean = luminance[left] / Math.max(1, cellPixels[left]);
+                final double rightMean = luminance[left + 1] / Math.max(1, cellPixels[left + 1]);
+                perceptualHash = (perceptualHash << 1) | (leftMean < rightMean ? 1 : 0);
+            }
+        }
+        return new ImageSidecar(xxHash64.digest(), perceptualHash, width, height);
+    }
+
+    /**
+     * forBaseline returns the sidecar metadata of a baseline image, reading it from the sidecar file
+     * when that file matches the baseline's current content, and rebuilding it otherwise.
+     *
+     * @param baselineFile The baseline image file.
+     * @return The metadata, or null if the baseline does not exist or cannot be decoded.
+     */
+    public static ImageSidecar forBaseline(File baselineFile) {
+        if (!baselineFile.isFile()) {
+            return null;
+        }
+        final File sidecarFile = sidecarFile(baselineFile);
+        try {
+            final String stamp = contentStamp(baselineFile);
+
+            // Reads the sidecar if it was built from this exact baseline content
+            if (sidecarFile.isFile()) {
+                final Properties properties = new Properties();
+                try (InputStream inputStream = Files.newInputStream(sidecarFile.toPath())) {
+                    properties.load(inputStream);
+                }
+                if (stamp.equals(properties.getProperty("source"))) {
+                    return new ImageSidecar(Long.parseUnsignedLong(properties.getProperty("digest"), 16),
+                            Long.parseUnsignedLong(properties.getProperty("perceptualHash"), 16),
+                            Integer.parseInt(properties.getProperty("width")),
+                            Integer.parseInt(properties.getProperty("height")));
+                }
+            }
+
+            // Rebuilds the sidecar from the decoded baseline
+            final BufferedImage baseline = BaselineCache.read(baselineFile);
+            if (baseline == null) {
+                return null;
+            }
+            final ImageSidecar sidecar = of(baseline);
+            sidecar.write(sidecarFile, stamp);
+            LOGGER.log(Level.INFO, "Sidecar rebuilt for: " + baselineFile.getName());
+            return sidecar;
+        } catch (IOException | RuntimeException ex) {
+            // A missing sidecar only costs the shortcut, so comparisons continue with a full diff
+            LOGGER.log(Level.WARNING, "Error while reading sidecar " + sidecarFile + ": " + ex.getMessage(), ex);
+            return null;
+        }
+    }
+
+    /**
+     * writeFor stores this metadata as the sidecar of the given baseline, e.g. right after the
+     * baseline was written from an image whose metadata is already known.
+     *
+     * @param baselineFile The baseline image file this metadata describes.
+     * @throws IOException if the baseline cannot be read or the sidecar cannot be written.
+     */
+    public void writeFor(File baselineFile) throws IOException {
+        write(sidecarFile(baselineFile), contentStamp(baselineFile));
+    }
+
+    /**
+     * sidecarFile returns the sidecar file of the given baseline.
+     *
+     * @param baselineFile The baseline image file.
+     * @return The sidecar file next to it.
+     */
+    public static File sidecarFile(File baselineFile) {
+        final String name = baselineFile.getName();
+        return new File(baselineFile.getParentFile(), name.substring(0, name.lastIndexOf('.')) + EXTENSION);
+    }
+
+    /**
+     * isIdentical tells whether both images have the same dimensions and the same pixel digest.
+     *
+     * @param other The metadata of the other image.
+     * @return true if the images are identical.
+     */
+    public boolean isIdentical(ImageSidecar other) {
+        return width == other.width && height == other.height && digest == other.digest;
+    }
+
+    /**
+     * perceptualDistance returns the number of differing bits between the perceptual hashes.
+     *
+     * @param other The metadata of the other image.
+     * @return The distance, from 0 (alike) to 64.
+     */
+    public int perceptualDistance(ImageSidecar other) {
+        return Long.bitCount(perceptualHash ^ other.perceptualHash);
+    }
+
+    public long getDigest() {
+        return digest;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    private void write(File sidecarFile, String stamp) throws IOException {
+        final Properties properties = new Properties();
+        properties.setProperty("source", stamp);
+        properties.setProperty("digest", Long.toHexString(digest));
+        properties.setProperty("perceptualHash", Long.toHexString(perceptualHash));
+        properties.setProperty("width", String.valueOf(width));
+        properties.setProperty("height", String.valueOf(height));
+        try (OutputStream outputStream = Files.newOutputStream(sidecarFile.toPath())) {
+            properties.store(outputStream, "Derived from the baseline image, rebuilt automatically when it changes");
+        }
+    }
+
+    /**
+     * contentStamp identifies the content of a file by its length and CRC32, which, unlike the
+     * modification time, survives checkouts and copies. The stamp is computed once per version of
+     * the file, so repeated comparisons do not read the whole baseline again.
+     */
+    private static String contentStamp(File file) throws IOException {
+        final String key = file.getAbsolutePath();
+        final long length = file.length();
+        final long lastModified = file.lastModified();
+        final Stamp cached = STAMPS.get(key);
+        if (cached != null && cached.length == length && cached.lastModified == lastModified) {
+            return cached.value;
+        }
+
+        final CRC32 crc32 = new CRC32();
+        crc32.update(Files.readAllBytes(file.toPath()));
+        final String value = length + ":" + Long.toHexString(crc32.getValue());
+        STAMPS.put(key, new Stamp(length, lastModified, value));
+        return value;
+    }
+
+    /**
+     * Stamp class holds the content stamp of one version of a file.
+     */
+    private static final class Stamp {
+
+        private final long length;
+        private final long lastModified;
+        private final String value;
+
+        private Stamp(long length, long lastModified, String value) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.value = value;
+        }
+    }
+
+}
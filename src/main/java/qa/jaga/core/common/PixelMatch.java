@@ -0,0 +1,284 @@
+package qa.jaga.core.common;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * PixelMatch class compares two images of the same size pixel by pixel and classifies every pixel whose
+ * perceived color difference exceeds a threshold either as anti-aliasing or as a real change, following
+ * the pixelmatch algorithm: the difference is measured in YIQ color space, and a pixel counts as
+ * anti-aliasing when it lies on a luminance gradient between neighbours that are part of flat areas in
+ * both images. Font smoothing and subpixel rendering differences between machines therefore do not
+ * fail a comparison.
+ * <p>
+ * The comparison is a single pass over both rasters: rows are decoded once into a rolling window of
+ * five rows, which is all the neighbourhood checks need, and the neighbourhood of a pixel is only
+ * examined when its color difference already exceeds the threshold.
+ * <p>
+ * Configuration (system properties):
+ * <ul>
+ *     <li>{@code visual.antialiasing} - compares with anti-aliasing detection instead of the engine's exact diff.</li>
+ *     <li>{@code visual.colorThreshold} - YIQ color difference threshold from 0 to 1 (default 0.1).</li>
+ * </ul>
+ */
+public final class PixelMatch {
+
+    // Maximum possible YIQ difference, scaled by the squared threshold
+    private static final double MAX_DELTA = 35215 * Math.pow(Double.parseDouble(System.getProperty("visual.colorThreshold", "0.1")), 2);
+
+    // Colors of the real and anti-aliased differences in the marked image
+    private static final int DIFFERENCE_COLOR = 0xFFFF0000;
+    private static final int ANTIALIASING_COLOR = 0xFFFFFF00;
+
+    // Rows kept in the rolling window: the row being compared and two on each side
+    private static final int WINDOW_ROWS = 5;
+
+    private final BufferedImage actual;
+    private final int width;
+    private final int height;
+    private int differentPixels;
+    private int antialiasedPixels;
+
+    // Positions of the classified pixels, negative (minus one) for anti-aliasing, to mark them afterwards
+    private int[] positions = new int[64];
+    private int positionCount;
+
+    private PixelMatch(BufferedImage actual) {
+        this.actual = actual;
+        this.width = actual.getWidth();
+        this.height = actual.getHeight();
+    }
+
+    /**
+     * isEnabled tells whether comparisons classify anti-aliasing instead of using the engine's exact diff.
+     *
+     * @return true if anti-aliasing detection is enabled.
+     */
+    public static boolean isEnabled() {
+        return Boolean.getBoolean("visual.antialiasing");
+    }
+
+    /**
+     * compare classifies the differing pixels of two images of the same size.
+     *
+     * @param expected The baseline image.
+     * @param actual   The captured image.
+     * @return The result of the comparison.
+     * @throws IllegalArgumentException if the images differ in size.
+     */
+    public static PixelMatch compare(BufferedImage expected, BufferedImage actual) {
+        if (expected.getWidth() != actual.getWidth() || expected.getHeight() != actual.getHeight()) {
+            throw new IllegalArgumentException("Images differ in size: " + expected.getWidth() + "x" + expected.getHeight()
+                    + " and " + actual.getWidth() + "x" + actual.getHeight());
+        }
+        final PixelMatch result = new PixelMatch(actual);
+        result.run(expected);
+        return result;
+    }
+
+    /**
+     * getDifferentPixels returns the number of pixels that changed beyond anti-aliasing.
+     *
+     * @return The number of real differences.
+     */
+    public int getDifferentPixels() {
+        return differentPixels;
+    }
+
+    /**
+     * getAntialiasedPixels returns the number of differing pixels classified as anti-aliasing.
+     *
+     * @return The number of anti-aliasing differences.
+     */
+    public int getAntialiasedPixels() {
+        return antialiasedPixels;
+    }
+
+    /**
+     * hasDiff tells whether any pixel changed beyond anti-aliasing.
+     *
+     * @return true if the images differ.
+     */
+    public boolean hasDiff() {
+        return differentPixels > 0;
+    }
+
+    /**
+     * getMarkedImage returns the captured image with real differences marked in red and anti-aliasing
+     * differences in yellow.
+     *
+     * @return A new marked image.
+     */
+    public BufferedImage getMarkedImage() {
+        final BufferedImage marked = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D graphics = marked.createGraphics();
+        graphics.drawImage(actual, 0, 0, null);
+        graphics.dispose();
+        for (int index = 0; index < positionCount; index++) {
+            final int position = positions[index];
+            final int pixel = position < 0 ? -position - 1 : position;
+            marked.setRGB(pixel % width, pixel / width, position < 0 ? ANTIALIASING_COLOR : DIFFERENCE_COLOR);
+        }
+        return marked;
+    }
+
+    private void run(BufferedImage expected) {
+        final int[][] expectedRows = new int[WINDOW_ROWS][width];
+        final int[][] actualRows = new int[WINDOW_ROWS][width];
+
+        // Preloads the rows below the first one
+        for (int y = 0; y < Math.min(2, height); y++) {
+            loadRow(expected, actual, expectedRows, actualRows, y);
+        }
+
+        for (int y = 0; y < height; y++) {
+            // Loads the row two below the current one, replacing the row that left the window
+            if (y + 2 < height) {
+                loadRow(expected, actual, expectedRows, actualRows, y + 2);
+            }
+
+            final int[] expectedRow = expectedRows[y % WINDOW_ROWS];
+            final int[] actualRow = actualRows[y % WINDOW_ROWS];
+            for (int x = 0; x < width; x++) {
+                if (expectedRow[x] == actualRow[x]) {
+                    continue;
+                }
+                final double delta = colorDelta(expectedRow[x], actualRow[x], false);
+                if (Math.abs(delta) <= MAX_DELTA) {
+                    continue;
+                }
+                if (isAntialiased(expectedRows, actualRows, x, y) || isAntialiased(actualRows, expectedRows, x, y)) {
+                    antialiasedPixels++;
+                    addPosition(-(y * width + x) - 1);
+                } else {
+                    differentPixels++;
+                    addPosition(y * width + x);
+                }
+            }
+        }
+    }
+
+    private void loadRow(BufferedImage expected, BufferedImage actual, int[][] expectedRows, int[][] actualRows, int y) {
+        expected.getRGB(0, y, width, 1, expectedRows[y % WINDOW_ROWS], 0, width);
+        actual.getRGB(0, y, width, 1, actualRows[y % WINDOW_ROWS], 0, width);
+    }
+
+    /**
+     * isAntialiased tells whether the pixel lies on a gradient in the given image: it has at most two
+     * neighbours of the same color, its darkest and brightest neighbours differ from it in opposite
+     * directions, and one of them sits in a flat area in both images.
+     */
+    private boolean isAntialiased(int[][] rows, int[][] otherRows, int x1, int y1) {
+        final int x0 = Math.max(x1 - 1, 0);
+        final int y0 = Math.max(y1 - 1, 0);
+        final int x2 = Math.min(x1 + 1, width - 1);
+        final int y2 = Math.min(y1 + 1, height - 1);
+        final int pixel = rows[y1 % WINDOW_ROWS][x1];
+        int zeroes = x1 == x0 || x1 == x2 || y1 == y0 || y1 == y2 ? 1 : 0;
+        double min = 0;
+        double max = 0;
+        int minX = 0, minY = 0, maxX = 0, maxY = 0;
+
+        for (int x = x0; x <= x2; x++) {
+            for (int y = y0; y <= y2; y++) {
+                if (x == x1 && y == y1) {
+                    continue;
+                }
+                // Brightness difference between the pixel and its neighbour
+                final double delta = colorDelta(pixel, rows[y % WINDOW_ROWS][x], true);
+                if (delta == 0) {
+                    zeroes++;
+                    if (zeroes > 2) {
+                        return false;
+                    }
+                } else if (delta < min) {
+                    min = delta;
+                    minX = x;
+                    minY = y;
+                } else if (delta > max) {
+                    max = delta;
+                    maxX = x;
+                    maxY = y;
+                }
+            }
+        }
+
+        // A pixel without both darker and brighter neighbours is not on a gradient
+        if (min == 0 || max == 0) {
+            return false;
+        }
+        return (hasManySiblings(rows, minX, minY) && hasManySiblings(otherRows, minX, minY))
+                || (hasManySiblings(rows, maxX, maxY) && hasManySiblings(otherRows, maxX, maxY));
+    }
+
+    /**
+     * hasManySiblings tells whether more than two neighbours of the pixel have exactly its color.
+     */
+    private boolean hasManySiblings(int[][] rows, int x1, int y1) {
+        final int x0 = Math.max(x1 - 1, 0);
+        final int y0 = Math.max(y1 - 1, 0);
+        final int x2 = Math.min(x1 + 1, width - 1);
+        final int y2 = Math.min(y1 + 1, height - 1);
+        final int pixel = rows[y1 % WINDOW_ROWS][x1];
+        int zeroes = x1 == x0 || x1 == x2 || y1 == y0 || y1 == y2 ? 1 : 0;
+
+        for (int x = x0; x <= x2; x++) {
+            for (int y = y0; y <= y2; y++) {
+                if (x == x1 && y == y1) {
+                    continue;
+                }
+                if (rows[y % WINDOW_ROWS][x] == pixel) {
+                    zeroes++;
+                }
+                if (zeroes > 2) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * colorDelta returns the perceived difference between two ARGB colors, blended over white, in YIQ
+     * color space, or only the brightness difference. The sign tells whether the second color is brighter.
+     */
+    private static double colorDelta(int argb1, int argb2, boolean brightnessOnly) {
+        if (argb1 == argb2) {
+            return 0;
+        }
+        final double alpha1 = (argb1 >>> 24) / 255.0;
+        final double red1 = blend((argb1 >> 16) & 0xFF, alpha1);
+        final double green1 = blend((argb1 >> 8) & 0xFF, alpha1);
+        final double blue1 = blend(argb1 & 0xFF, alpha1);
+        final double alpha2 = (argb2 >>> 24) / 255.0;
+        final double red2 = blend((argb2 >> 16) & 0xFF, alpha2);
+        final double green2 = blend((argb2 >> 8) & 0xFF, alpha2);
+        final double blue2 = blend(argb2 & 0xFF, alpha2);
+
+        final double y1 = red1 * 0.29889531 + green1 * 0.58662247 + blue1 * 0.11448223;
+        final double y2 = red2 * 0.29889531 + green2 * 0.58662247 + blue2 * 0.11448223;
+        final double y = y1 - y2;
+        if (brightnessOnly) {
+            return y;
+        }
+        final double i = (red1 * 0.59597799 - green1 * 0.27417610 - blue1 * 0.32180189)
+                - (red2 * 0.59597799 - green2 * 0.27417610 - blue2 * 0.32180189);
+        final double q = (red1 * 0.21147017 - green1 * 0.52261711 + blue1 * 0.31114694)
+                - (red2 * 0.21147017 - green2 * 0.52261711 + blue2 * 0.31114694);
+        final double delta = 0.5053 * y * y + 0.299 * i * i + 0.1957 * q * q;
+        return y1 > y2 ? -delta : delta;
+    }
+
+    private static double blend(int channel, double alpha) {
+        return 255 + (channel - 255) * alpha;
+    }
+
+    private void addPosition(int position) {
+        if (positionCount == positions.length) {
+            positions = Arrays.copyOf(positions, positionCount * 2);
+        }
+        positions[positionCount++] = position;
+    }
+
+}
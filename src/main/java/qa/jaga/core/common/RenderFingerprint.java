@@ -0,0 +1,168 @@
+package qa.jaga.core.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * RenderFingerprint class computes a cheap fingerprint of everything that determines how a page
+ * renders (serialized DOM, stylesheet text, asset URLs and their validators, viewport) and persists it
+ * next to the baseline after a passing comparison. In incremental mode, a page whose fingerprint is
+ * unchanged since its last pass is skipped instead of being captured and compared again.
+ * <p>
+ * Configuration (system properties):
+ * <ul>
+ *     <li>{@code visual.incremental} - enables fingerprinting and skipping of unchanged pages.</li>
+ *     <li>{@code visual.fullRun} - forces every page to be captured and compared, while still recording fingerprints.</li>
+ * </ul>
+ */
+public final class RenderFingerprint {
+
+    // Logger to log messages and errors to the console
+    private static final Logger LOGGER = Logger.getLogger(RenderFingerprint.class.getName());
+
+    // Browser function collecting the render state of the page as one string: DOM, stylesheets, assets, and viewport
+    public static final String RENDER_STATE_FUNCTION = "() => {"
+            + " const styles = [];"
+            + " for (const sheet of Array.from(document.styleSheets)) {"
+            + "  try { for (const rule of Array.from(sheet.cssRules)) styles.push(rule.cssText); }"
+            + "  catch (e) { styles.push(sheet.href || ''); }"
+            + " }"
+            + " const assets = new Set(performance.getEntriesByType('resource').map(entry => entry.name));"
+            + " document.querySelectorAll('img[src], script[src], link[href], source[src]')"
+            + "  .forEach(element => assets.add(element.src || element.href));"
+            + " return [document.documentElement.outerHTML, styles.join('\\n'), Array.from(assets).sort().join('\\n'),"
+            + "  window.innerWidth + 'x' + window.innerHeight + '@' + window.devicePixelRatio].join('\\u0000');"
+            + "}";
+
+    // Extension of the files holding the fingerprint of the last passing render, stored next to the baseline
+    private static final String EXTENSION = ".fingerprint";
+
+    private RenderFingerprint() {
+    }
+
+    /**
+     * isIncremental tells whether fingerprints are computed and recorded for this run.
+     *
+     * @return true if incremental mode is enabled.
+     */
+    public static boolean isIncremental() {
+        return Boolean.getBoolean("visual.incremental");
+    }
+
+    /**
+     * isFullRun tells whether every page must be captured, even if its fingerprint is unchanged.
+     *
+     * @return true if a full run is forced.
+     */
+    public static boolean isFullRun() {
+        return Boolean.getBoolean("visual.fullRun");
+    }
+
+    /**
+     * digest hashes the render state collected by {@link #RENDER_STATE_FUNCTION} together with the
+     * validators (ETag or Last-Modified) of the page's assets, where they are known.
+     *
+     * @param renderState The string returned by the render state function.
+     * @param validators  The validators of the assets loaded by the page, keyed by URL.
+     * @return The fingerprint as a hexadecimal string.
+     */
+    public static String digest(String renderState, Map<String, String> validators) {
+        try {
+            final MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            messageDigest.update(renderState.getBytes(StandardCharsets.UTF_8));
+
+            // Asset URLs are the third part of the render state, one per line
+            final String[] parts = renderState.split("\u0000");
+            if (parts.length > 2) {
+                for (String asset : parts[2].split("\n")) {
+                    final String validator = validators.get(asset);
+                    if (validator != null) {
+                        messageDigest.update((asset + "=" + validator + "\n").getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+            }
+            return toHex(messageDigest.digest());
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+
+    /**
+     * isUnchanged tells whether the page can be skipped: incremental mode is on, no full run is forced,
+     * and the fingerprint equals the one recorded when the page last passed against the current baseline.
+     *
+     * @param baselineFile The baseline image the page is compared against.
+     * @param fingerprint  The fingerprint of the page as it renders now.
+     * @return true if the capture and comparison can be skipped.
+     */
+    public static boolean isUnchanged(File baselineFile, String fingerprint) {
+        if (fingerprint == null || !isIncremental() || isFullRun() || !baselineFile.isFile()) {
+            return false;
+        }
+        final File fingerprintFile = fingerprintFile(baselineFile);
+        if (!fingerprintFile.isFile()) {
+            return false;
+        }
+        try {
+            // The recorded fingerprint only applies to the baseline it passed against
+            final List<String> lines = Files.readAllLines(fingerprintFile.toPath(), StandardCharsets.UTF_8);
+            return lines.size() == 2 && fingerprint.equals(lines.get(0)) && baselineStamp(baselineFile).equals(lines.get(1));
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Error while reading fingerprint: " + ex.getMessage(), ex);
+            return false;
+        }
+    }
+
+    /**
+     * record stores the fingerprint of a page that passed its comparison next to its baseline.
+     *
+     * @param baselineFile The baseline image the page passed against.
+     * @param fingerprint  The fingerprint of the page, or null when incremental mode is off.
+     */
+    public static void record(File baselineFile, String fingerprint) {
+        if (fingerprint == null || !baselineFile.isFile()) {
+            return;
+        }
+        try {
+            Files.write(fingerprintFile(baselineFile).toPath(),
+                    (fingerprint + "\n" + baselineStamp(baselineFile) + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Error while saving fingerprint: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * fingerprintFile returns the file holding the fingerprint recorded for the given baseline.
+     *
+     * @param baselineFile The baseline image file.
+     * @return The fingerprint file next to it.
+     */
+    public static File fingerprintFile(File baselineFile) {
+        final String name = baselineFile.getName();
+        return new File(baselineFile.getParentFile(), name.substring(0, name.lastIndexOf('.')) + EXTENSION);
+    }
+
+    /**
+     * baselineStamp identifies the version of the baseline file by its size and modification time.
+     */
+    private static String baselineStamp(File baselineFile) {
+        return baselineFile.length() + ":" + baselineFile.lastModified();
+    }
+
+    private static String toHex(byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte value : bytes) {
+            hex.append(String.format("%02x", value));
+        }
+        return hex.toString();
+    }
+
+}
@@ -0,0 +1,285 @@
+package qa.jaga.core.common;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ScreencastRecording class compares the frames of a CDP screencast, as they arrive, against a
+ * baseline frame sequence. Consecutive identical frames are dropped by pixel digest. Each new frame is
+ * aligned with the closest baseline frame, by perceptual hash distance, among the last matched frame and
+ * a small window of the following ones, so dropped, delayed, or in-between transition frames do not fail
+ * the sequence. The closest frame is confirmed with {@link PixelMatch}, and only frames without a
+ * baseline frame within tolerance are written to disk, asynchronously.
+ * <p>
+ * Frames are handed to the comparator through a bounded queue: {@link #onFrame(byte[])} blocks while it
+ * is full, so the browser, which waits for each frame to be acknowledged, slows the screencast down
+ * instead of the pending frames piling up in memory.
+ * <p>
+ * Configuration (system properties):
+ * <ul>
+ *     <li>{@code visual.screencastAlignmentWindow} - baseline frames a frame may skip ahead (default 5).</li>
+ *     <li>{@code visual.screencastFrameDistance} - maximum perceptual hash distance of a matching frame (default 8 of 64).</li>
+ *     <li>{@code visual.screencastPixelTolerance} - maximum share of changed pixels, anti-aliasing aside, of a
+ *     matching frame (default 0.02).</li>
+ *     <li>{@code visual.screencastRecord} - records sequences that have no baseline frames yet and reports them
+ *     as passed (default false).</li>
+ * </ul>
+ * <p>
+ * A baseline sequence is a directory of {@code frame_NNNN.png} files named after the recording. When it
+ * does not exist yet, every frame is written out so that the sequence can be approved as the baseline;
+ * the recording only passes in record mode. A recording that received no frame never passes.
+ */
+public final class ScreencastRecording {
+
+    // Logger to log messages and errors to the console
+    private static final Logger LOGGER = Logger.getLogger(ScreencastRecording.class.getName());
+
+    // Number of baseline frames a new frame may skip ahead when looking for its match
+    private static final int ALIGNMENT_WINDOW = Integer.getInteger("visual.screencastAlignmentWindow", 5);
+
+    // Perceptual hash distance and share of changed pixels up to which a frame matches a baseline frame
+    private static final int FRAME_DISTANCE = Integer.getInteger("visual.screencastFrameDistance", 8);
+    private static final double PIXEL_TOLERANCE = Double.parseDouble(System.getProperty("visual.screencastPixelTolerance", "0.02"));
+
+    // Records sequences without baseline frames as passed instead of failing them
+    private static final boolean RECORD = Boolean.getBoolean("visual.screencastRecord");
+
+    // Number of frames that may wait for the comparator before onFrame blocks
+    private static final int QUEUE_CAPACITY = 4;
+
+    private final String name;
+    private final File outputDir;
+
+    // Sidecar metadata and files of the baseline frames, in sequence order
+    private final List<ImageSidecar> baselineFrames = new ArrayList<>();
+    private final List<File> baselineFiles = new ArrayList<>();
+
+    // Bounds the frames queued for, or being compared by, the comparator
+    private final Semaphore slots = new Semaphore(QUEUE_CAPACITY);
+
+    // Frames are decoded and compared in arrival order on one thread, and mismatches are written on another
+    private final ExecutorService comparator;
+    private final ExecutorService writer;
+
+    // State owned by the comparator thread
+    private long lastDigest;
+    private int frames;
+    private int uniqueFrames;
+    private int matchedFrames;
+    private int mismatchedFrames;
+    private int nextBaselineFrame;
+
+    // Stops the browser side of the screencast
+    private Runnable stopAction = () -> { };
+
+    /**
+     * Constructor creates a recording compared against the given baseline sequence.
+     *
+     * @param name                The name of the recording, used for the frame directories.
+     * @param baselineSequenceDir The directory holding the baseline frames.
+     * @param outputDir           The directory mismatching frames are written to.
+     */
+    public ScreencastRecording(String name, File baselineSequenceDir, File outputDir) {
+        this.name = name;
+        this.outputDir = outputDir;
+
+        // Loads the baseline frame metadata from their sidecars, rebuilding stale ones
+        final File[] files = baselineSequenceDir.listFiles((dir, file) -> file.startsWith("frame_") && file.endsWith(".png"));
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                final ImageSidecar sidecar = ImageSidecar.forBaseline(file);
+                if (sidecar != null) {
+                    baselineFrames.add(sidecar);
+                    baselineFiles.add(file);
+                }
+            }
+        }
+        if (baselineFrames.isEmpty()) {
+            LOGGER.log(Level.WARNING, "No baseline frames for screencast " + name + ", all frames will be recorded"
+                    + (RECORD ? "." : " and the recording fails outside record mode."));
+        }
+
+        this.comparator = Executors.newSingleThreadExecutor(runnable -> daemon(runnable, "screencast-compare-" + name));
+        this.writer = Executors.newSingleThreadExecutor(runnable -> daemon(runnable, "screencast-write-" + name));
+    }
+
+    /**
+     * setStopAction sets the action that stops the screencast in the browser.
+     *
+     * @param stopAction The action to run when the recording is stopped.
+     */
+    public void setStopAction(Runnable stopAction) {
+        this.stopAction = stopAction;
+    }
+
+    /**
+     * onFrame queues an encoded frame for comparison. It returns as soon as the frame is queued,
+     * without waiting for the comparison, and blocks while the queue is full. Acknowledge the frame
+     * to the browser only after it returns.
+     *
+     * @param encodedFrame The PNG bytes of the frame.
+     */
+    public void onFrame(byte[] encodedFrame) {
+        try {
+            slots.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            LOGGER.log(Level.WARNING, "Interrupted while queueing screencast frame, frame dropped.");
+            return;
+        }
+        try {
+            comparator.execute(() -> {
+                try {
+                    compareFrame(encodedFrame);
+                } finally {
+                    slots.release();
+                }
+            });
+        } catch (RuntimeException ex) {
+            slots.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * stop stops the screencast, waits for the queued frames to be compared and written, and reports
+     * whether the recorded sequence matches the baseline sequence.
+     *
+     * @return true if every frame matched and the whole baseline sequence was played, or if a sequence
+     * without baseline frames was recorded in record mode; false otherwise, and whenever no frame was received.
+     */
+    public boolean stop() {
+        try {
+            stopAction.run();
+        } finally {
+            await(comparator);
+            await(writer);
+        }
+
+        // A screencast that never started would otherwise match any sequence vacuously
+        if (uniqueFrames == 0) {
+            LOGGER.log(Level.WARNING, "Screencast " + name + " received no frames.");
+            return false;
+        }
+        final boolean match = baselineFrames.isEmpty()
+                ? RECORD
+                : mismatchedFrames == 0 && nextBaselineFrame == baselineFrames.size();
+        LOGGER.log(Level.INFO, "Screencast " + name + ": " + frames + " frames, " + uniqueFrames + " unique, "
+                + matchedFrames + " matched, " + mismatchedFrames + " mismatched, "
+                + nextBaselineFrame + "/" + baselineFrames.size() + " baseline frames reached.");
+        return match;
+    }
+
+    /**
+     * compareFrame drops the frame if it repeats the previous one, otherwise aligns it with the
+     * baseline sequence and writes it out if no baseline frame matches.
+     */
+    private void compareFrame(byte[] encodedFrame) {
+        frames++;
+        final BufferedImage image;
+        try {
+            image = ImageIO.read(new ByteArrayInputStream(encodedFrame));
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Error while decoding screencast frame: " + ex.getMessage(), ex);
+            return;
+        }
+        if (image == null) {
+            return;
+        }
+
+        // Drops frames identical to the previous one, e.g. while nothing moves
+        final ImageSidecar frame = ImageSidecar.of(image);
+        if (uniqueFrames > 0 && frame.getDigest() == lastDigest) {
+            return;
+        }
+        lastDigest = frame.getDigest();
+        final int frameIndex = uniqueFrames++;
+
+        // Looks for the closest frame among the last matched and the next baseline frames, tolerating frames
+        // dropped in between and frames captured between two baseline frames
+        final int windowStart = Math.max(0, nextBaselineFrame - 1);
+        final int windowEnd = Math.min(baselineFrames.size(), nextBaselineFrame + ALIGNMENT_WINDOW);
+        int closest = -1;
+        int closestDistance = Integer.MAX_VALUE;
+        for (int candidate = windowStart; candidate < windowEnd; candidate++) {
+            final ImageSidecar baselineFrame = baselineFrames.get(candidate);
+            if (baselineFrame.isIdentical(frame)) {
+                closest = candidate;
+                closestDistance = -1;
+                break;
+            }
+            final int distance = baselineFrame.perceptualDistance(frame);
+            if (baselineFrame.getWidth() == frame.getWidth() && baselineFrame.getHeight() == frame.getHeight()
+                    && distance < closestDistance) {
+                closest = candidate;
+                closestDistance = distance;
+            }
+        }
+
+        // Confirms a close frame pixel by pixel, ignoring anti-aliasing
+        if (closest >= 0 && (closestDistance < 0 || (closestDistance <= FRAME_DISTANCE && isWithinTolerance(closest, image)))) {
+            matchedFrames++;
+            nextBaselineFrame = Math.max(nextBaselineFrame, closest + 1);
+            return;
+        }
+
+        // Writes the mismatching frame as captured, without re-encoding it
+        mismatchedFrames++;
+        writer.execute(() -> writeFrame(frameIndex, encodedFrame));
+    }
+
+    /**
+     * isWithinTolerance tells whether the frame changes at most the tolerated share of the pixels of
+     * the given baseline frame, anti-aliasing aside.
+     */
+    private boolean isWithinTolerance(int baselineFrame, BufferedImage image) {
+        final BufferedImage baseline = BaselineCache.read(baselineFiles.get(baselineFrame));
+        if (baseline == null) {
+            return false;
+        }
+        final PixelMatch pixelMatch = PixelMatch.compare(baseline, image);
+        return pixelMatch.getDifferentPixels() <= PIXEL_TOLERANCE * image.getWidth() * image.getHeight();
+    }
+
+    private void writeFrame(int frameIndex, byte[] encodedFrame) {
+        try {
+            Files.createDirectories(outputDir.toPath());
+            Files.write(new File(outputDir, String.format("frame_%04d.png", frameIndex)).toPath(), encodedFrame);
+        } catch (IOException ex) {
+            LOGGER.log(Level.SEVERE, "Error while saving screencast frame: " + ex.getMessage(), ex);
+        }
+    }
+
+    private static void await(ExecutorService executor) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException ex) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        final Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+}
@@ -0,0 +1,136 @@
+package qa.jaga.core.common;
+
+/**
+ * XxHash64 class is a streaming implementation of the 64-bit xxHash function (seed 0), fed with
+ * 32-bit values in little-endian byte order, e.g. the ARGB pixels of a raster one row at a time.
+ * It is used as a fast digest to detect identical renderings without a pixel diff.
+ */
+public final class XxHash64 {
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    // Accumulators of the four lanes of a 32 byte stripe
+    private long v1 = PRIME1 + PRIME2;
+    private long v2 = PRIME2;
+    private long v3 = 0;
+    private long v4 = -PRIME1;
+
+    // Values of the current, incomplete stripe (8 values of 4 bytes)
+    private final int[] stripe = new int[8];
+    private int stripeSize;
+
+    // Total number of values hashed so far
+    private long count;
+
+    /**
+     * update adds a range of 32-bit values to the hash.
+     *
+     * @param values The values to add.
+     * @param offset The index of the first value to add.
+     * @param length The number of values to add.
+     */
+    public void update(int[] values, int offset, int length) {
+        count += length;
+        int index = offset;
+        final int end = offset + length;
+
+        // Completes a stripe left over from the previous update
+        while (stripeSize > 0 && index < end) {
+            stripe[stripeSize++] = values[index++];
+            if (stripeSize == stripe.length) {
+                processStripe(stripe, 0);
+                stripeSize = 0;
+            }
+        }
+
+        // Processes whole stripes straight from the input
+        while (end - index >= stripe.length) {
+            processStripe(values, index);
+            index += stripe.length;
+        }
+
+        // Keeps the remainder for the next update
+        while (index < end) {
+            stripe[stripeSize++] = values[index++];
+        }
+    }
+
+    /**
+     * update adds a single 32-bit value to the hash.
+     *
+     * @param value The value to add.
+     */
+    public void update(int value) {
+        count++;
+        stripe[stripeSize++] = value;
+        if (stripeSize == stripe.length) {
+            processStripe(stripe, 0);
+            stripeSize = 0;
+        }
+    }
+
+    /**
+     * digest returns the hash of all values added so far. The hash can still be updated afterwards.
+     *
+     * @return The 64-bit hash.
+     */
+    public long digest() {
+        long hash;
+        if (count >= stripe.length) {
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = mergeRound(hash, v1);
+            hash = mergeRound(hash, v2);
+            hash = mergeRound(hash, v3);
+            hash = mergeRound(hash, v4);
+        } else {
+            hash = PRIME5;
+        }
+        hash += count * 4;
+
+        // Consumes the remaining 8 byte lanes, then the last 4 byte value
+        int index = 0;
+        while (stripeSize - index >= 2) {
+            hash ^= round(0, lane(stripe, index));
+            hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+            index += 2;
+        }
+        if (index < stripeSize) {
+            hash ^= (stripe[index] & 0xFFFFFFFFL) * PRIME1;
+            hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        hash ^= hash >>> 29;
+        hash *= PRIME3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    private void processStripe(int[] values, int offset) {
+        v1 = round(v1, lane(values, offset));
+        v2 = round(v2, lane(values, offset + 2));
+        v3 = round(v3, lane(values, offset + 4));
+        v4 = round(v4, lane(values, offset + 6));
+    }
+
+    private static long lane(int[] values, int offset) {
+        return (values[offset] & 0xFFFFFFFFL) | ((long) values[offset + 1] << 32);
+    }
+
+    private static long round(long accumulator, long input) {
+        accumulator += input * PRIME2;
+        accumulator = Long.rotateLeft(accumulator, 31);
+        return accumulator * PRIME1;
+    }
+
+    private static long mergeRound(long hash, long accumulator) {
+        hash ^= round(0, accumulator);
+        return hash * PRIME1 + PRIME4;
+    }
+
+}
@@ -0,0 +1,136 @@
+package qa.jaga.core.playwright;
+
+import com.microsoft.playwright.Browser;
+import com.microsoft.playwright.BrowserContext;
+import com.microsoft.playwright.BrowserType;
+import com.microsoft.playwright.Playwright;
+
+import java.util.Collections;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * BrowserService class shares a single Playwright driver and Chromium browser across all test classes
+ * of a suite, so each class only pays for a fresh BrowserContext instead of a driver and browser startup.
+ * The browser is shut down by {@link BrowserServiceListener} when the suite finishes.
+ * <p>
+ * Configuration (system properties):
+ * <ul>
+ *     <li>{@code visual.headless} - run Chromium headless (default true); use false for headed runs.</li>
+ *     <li>{@code visual.windowSize} - window size as width,height; headless default 1366,768, the size the
+ *     committed baselines were captured at (1349 CSS pixels wide next to the scrollbar). Headed runs start
+ *     maximized unless it is set.</li>
+ *     <li>{@code visual.wsEndpoint} - connect to an already running Playwright browser server instead of launching one.</li>
+ * </ul>
+ * Playwright objects are not thread-safe, so test classes sharing the service must not run in parallel.
+ */
+public final class BrowserService {
+
+    // Logger to log messages and errors to the console
+    private static final Logger LOGGER = Logger.getLogger(BrowserService.class.getName());
+
+    // Runs Chromium headless unless headed runs are requested, e.g. mvn test -Dvisual.headless=false
+    private static final boolean HEADLESS = Boolean.parseBoolean(System.getProperty("visual.headless", "true"));
+
+    // Window size of launched browsers, matching the screen the committed baselines were captured on
+    private static final String WINDOW_SIZE = System.getProperty("visual.windowSize");
+
+    // Endpoint of a running Playwright browser server to connect to, if any
+    private static final String WS_ENDPOINT = System.getProperty("visual.wsEndpoint");
+
+    // The suite-wide instance, created on first use
+    private static BrowserService instance;
+
+    private final Playwright playwright;
+    private final Browser browser;
+
+    // Time spent creating the driver and starting or connecting to the browser
+    private final long startupMillis;
+
+    // Number of contexts handed out after the first one, i.e. browser startups avoided
+    private int reuses = -1;
+
+    /**
+     * Constructor creates the Playwright driver and launches, or connects to, Chromium.
+     */
+    private BrowserService() {
+        final long start = System.nanoTime();
+        this.playwright = Playwright.create();
+
+        if (WS_ENDPOINT != null && !WS_ENDPOINT.isEmpty()) {
+            // Connects to a browser server that outlives this JVM
+            this.browser = playwright.chromium().connect(WS_ENDPOINT);
+        } else {
+            // Starts the browser with the configured window size, or maximized when headed without one
+            final String windowArgument = WINDOW_SIZE != null ? "--window-size=" + WINDOW_SIZE
+                    : HEADLESS ? "--window-size=1366,768" : "--start-maximized";
+            this.browser = playwright.chromium().launch(new BrowserType.LaunchOptions()
+                    .setHeadless(HEADLESS).setArgs(Collections.singletonList(windowArgument)));
+        }
+
+        this.startupMillis = (System.nanoTime() - start) / 1_000_000;
+        LOGGER.log(Level.INFO, "Browser " + browser.version() + (HEADLESS ? " (headless)" : " (headed)")
+                + " started in " + startupMillis + " ms.");
+    }
+
+    /**
+     * getInstance returns the suite-wide browser service, starting the browser on first use.
+     *
+     * @return The shared BrowserService.
+     */
+    public static synchronized BrowserService getInstance() {
+        if (instance == null) {
+            instance = new BrowserService();
+        }
+        return instance;
+    }
+
+    /**
+     * newContext creates a fresh, isolated BrowserContext on the shared browser. The caller owns the
+     * context and must close it, typically in its @AfterClass method.
+     *
+     * @param options The options of the new context.
+     * @return The new BrowserContext.
+     */
+    public synchronized BrowserContext newContext(Browser.NewContextOptions options) {
+        final long start = System.nanoTime();
+        final BrowserContext browserContext = browser.newContext(options);
+        final long contextMillis = (System.nanoTime() - start) / 1_000_000;
+
+        // Every context after the first one reuses the running browser instead of starting a new one
+        if (++reuses > 0) {
+            LOGGER.log(Level.INFO, "Context ready in " + contextMillis + " ms, saved " + startupMillis + " ms of browser startup.");
+        } else {
+            LOGGER.log(Level.INFO, "Context ready in " + contextMillis + " ms.");
+        }
+        return browserContext;
+    }
+
+    /**
+     * shutdown closes the shared browser and Playwright driver, if they were started, and reports
+     * the startup time saved by sharing them. The driver is closed even if closing the browser fails,
+     * e.g. when a remote browser server has already disconnected, and close errors are only logged.
+     */
+    public static synchronized void shutdown() {
+        if (instance == null) {
+            return;
+        }
+        try {
+            instance.browser.close();
+        } catch (RuntimeException ex) {
+            LOGGER.log(Level.WARNING, "Error while closing the browser: " + ex.getMessage(), ex);
+        } finally {
+            try {
+                instance.playwright.close();
+            } catch (RuntimeException ex) {
+                LOGGER.log(Level.WARNING, "Error while closing the Playwright driver: " + ex.getMessage(), ex);
+            } finally {
+                final int reuses = Math.max(0, instance.reuses);
+                LOGGER.log(Level.INFO, "Browser reused by " + reuses + " test classes, saved about "
+                        + reuses * instance.startupMillis + " ms of startup.");
+                instance = null;
+            }
+        }
+    }
+
+}
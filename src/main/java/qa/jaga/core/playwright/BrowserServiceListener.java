@@ -0,0 +1,23 @@
+package qa.jaga.core.playwright;
+
+import org.testng.ISuite;
+import org.testng.ISuiteListener;
+
+/**
+ * BrowserServiceListener class is a TestNG suite listener that shuts down the shared
+ * {@link BrowserService} browser once every test class of the suite has finished,
+ * whether the tests passed or not. Register it in the suite XML under listeners.
+ */
+public class BrowserServiceListener implements ISuiteListener {
+
+    /**
+     * onFinish closes the shared browser after the last test class of the suite.
+     *
+     * @param suite The suite that finished.
+     */
+    @Override
+    public void onFinish(ISuite suite) {
+        BrowserService.shutdown();
+    }
+
+}
@@ -4,16 +4,38 @@ import com.github.romankh3.image.comparison.ImageComparison;
 import com.github.romankh3.image.comparison.ImageComparisonUtil;
 import com.github.romankh3.image.comparison.model.ImageComparisonResult;
 import com.github.romankh3.image.comparison.model.ImageComparisonState;
+import com.google.gson.JsonObject;
+import com.microsoft.playwright.Browser;
+import com.microsoft.playwright.CDPSession;
 import com.microsoft.playwright.Locator;
 import com.microsoft.playwright.Page;
+import com.microsoft.playwright.options.ViewportSize;
 import org.testng.Assert;
+import qa.jaga.core.common.BaselineCache;
+import qa.jaga.core.common.FailureMarkers;
+import qa.jaga.core.common.FlakeConfirmation;
+import qa.jaga.core.common.ImageSidecar;
+import qa.jaga.core.common.PixelMatch;
+import qa.jaga.core.common.RenderFingerprint;
+import qa.jaga.core.common.ScreencastRecording;
+import qa.jaga.core.service.ComparisonClient;
 
+import javax.imageio.ImageIO;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -27,24 +49,59 @@ public class ScreenshotUtility {
     // Logger to log messages and errors to the console
     private static final Logger LOGGER = Logger.getLogger(ScreenshotUtility.class.getName());
 
-    // Constants for directories where screenshots, baseline images, and differences are stored
-    private static final String SCREENSHOT_DIR = System.getProperty("user.dir") + "/src/main/resources/playwright/images/screenshot/";
-    private static final String BASELINE_DIR = System.getProperty("user.dir") + "/src/main/resources/playwright/images/baseline/";
-    private static final String DIFFERENCE_DIR = System.getProperty("user.dir") + "/src/main/resources/playwright/images/difference/";
+    // Default root directory under which screenshots, baseline images, and differences are stored
+    private static final String IMAGE_DIR = System.getProperty("user.dir") + "/src/main/resources/playwright/images/";
+
+    // Directories where screenshots, baseline images, and differences are stored
+    private final String imageDir;
+    private final String screenshotDir;
+    private final String baselineDir;
+    private final String differenceDir;
+
+    // Validators (ETag or Last-Modified) of the responses received by each tracked page, keyed by URL
+    private static final Map<Page, Map<String, String>> ASSET_VALIDATORS = new WeakHashMap<>();
+
+    // Script that resolves once web fonts are loaded and the document height is stable across animation frames
+    private static final String LAYOUT_SETTLED_SCRIPT = "async () => {"
+            + " await document.fonts.ready;"
+            + " let lastHeight = -1;"
+            + " for (let i = 0; i < 10; i++) {"
+            + "  await new Promise(resolve => requestAnimationFrame(() => requestAnimationFrame(resolve)));"
+            + "  const height = document.documentElement.scrollHeight;"
+            + "  if (height === lastHeight) return;"
+            + "  lastHeight = height;"
+            + " }"
+            + "}";
 
     /**
      * Constructor initializes the ScreenshotUtility by ensuring that the necessary
      * directories for screenshots, baselines, and differences exist.
      */
     public ScreenshotUtility() {
+        this(IMAGE_DIR);
+    }
+
+    /**
+     * Constructor initializes the ScreenshotUtility with a custom image root directory, e.g. for
+     * benchmarks that must not touch the project baselines. The screenshot, baseline, and difference
+     * directories are created under it if they do not exist.
+     *
+     * @param imageDir The root directory containing the screenshot, baseline, and difference directories.
+     */
+    public ScreenshotUtility(String imageDir) {
+        this.imageDir = imageDir.endsWith("/") ? imageDir : imageDir + "/";
+        this.screenshotDir = this.imageDir + "screenshot/";
+        this.baselineDir = this.imageDir + "baseline/";
+        this.differenceDir = this.imageDir + "difference/";
+
         // Ensures the screenshot directory exists or creates it
-        createDirectoryIfNotExist(SCREENSHOT_DIR);
+        createDirectoryIfNotExist(screenshotDir);
 
         // Ensures the baseline directory exists or creates it
-        createDirectoryIfNotExist(BASELINE_DIR);
+        createDirectoryIfNotExist(baselineDir);
 
         // Ensures the difference directory exists or creates it
-        createDirectoryIfNotExist(DIFFERENCE_DIR);
+        createDirectoryIfNotExist(differenceDir);
     }
 
     /**
@@ -90,6 +147,160 @@ public class ScreenshotUtility {
         LOGGER.log(Level.INFO, "Element screenshot taken: " + imageName);
     }
 
+    /**
+     * captureViewportMatrix captures the already loaded page at every default breakpoint
+     * (mobile, tablet, desktop) and compares each capture against that viewport's baseline.
+     *
+     * @param page      The Page instance used to control the browser.
+     * @param imageName The base name of the images; the viewport name is appended to it.
+     * @return The comparison result for each viewport, keyed by viewport name.
+     */
+    public Map<String, Boolean> captureViewportMatrix(Page page, String imageName) {
+        return captureViewportMatrix(page, imageName, Viewport.BREAKPOINTS);
+    }
+
+    /**
+     * captureViewportMatrix captures the already loaded page at each of the given viewports without
+     * navigating again. For each viewport it resizes the page, waits for the layout to settle,
+     * takes a full page screenshot named imageName_viewportName, and compares it against the
+     * baseline of the same name. The original viewport is restored afterwards on every engine; a page
+     * whose context has no fixed viewport gets a viewport of its original window size.
+     * The device scale factor is emulated on Chromium only.
+     *
+     * @param page      The Page instance used to control the browser.
+     * @param imageName The base name of the images; the viewport name is appended to it.
+     * @param viewports The viewports to capture.
+     * @return The comparison result for each viewport, keyed by viewport name.
+     * @throws IllegalStateException if the original viewport size of the page cannot be determined.
+     */
+    public Map<String, Boolean> captureViewportMatrix(Page page, String imageName, List<Viewport> viewports) {
+        final Map<String, Boolean> results = new LinkedHashMap<>();
+
+        // Log a warning if the page object is null
+        if (page == null) {
+            LOGGER.log(Level.WARNING, "Page instance is null.");
+            return results;
+        }
+
+        // Chromium can emulate the device scale factor on the live page through a CDP session
+        final Browser browser = page.context().browser();
+        final CDPSession cdpSession = browser != null && "chromium".equals(browser.browserType().name())
+                ? page.context().newCDPSession(page) : null;
+        final ViewportSize originalViewport = page.viewportSize() != null ? page.viewportSize() : windowSize(page);
+
+        try {
+            for (Viewport viewport : viewports) {
+                final String viewportImageName = imageName + "_" + viewport.getName();
+
+                // Resizes the page to the viewport and waits until the layout stops changing
+                resizeViewport(page, cdpSession, viewport);
+                page.evaluate(LAYOUT_SETTLED_SCRIPT);
+
+                // Captures and compares the page for this viewport
+                takePageScreenshot(page, viewportImageName);
+                results.put(viewport.getName(), areImagesEqual(page, viewportImageName, viewportImageName));
+            }
+        } finally {
+            // Restores the viewport the page had before the matrix was captured
+            if (cdpSession != null) {
+                cdpSession.send("Emulation.clearDeviceMetricsOverride");
+                cdpSession.detach();
+
+                // Clearing the override also drops the viewport Playwright emulates for the context
+                if (page.viewportSize() != null) {
+                    page.setViewportSize(originalViewport.width, originalViewport.height);
+                }
+            } else {
+                page.setViewportSize(originalViewport.width, originalViewport.height);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * windowSize returns the size of the window of a page whose context has no fixed viewport, so that
+     * it can be restored after the page was resized.
+     *
+     * @param page The Page instance used to control the browser.
+     * @return The inner size of the window.
+     * @throws IllegalStateException if the window reports no size.
+     */
+    private static ViewportSize windowSize(Page page) {
+        final Object size = page.evaluate("() => [window.innerWidth, window.innerHeight]");
+        if (size instanceof List && ((List<?>) size).size() == 2) {
+            final int width = ((Number) ((List<?>) size).get(0)).intValue();
+            final int height = ((Number) ((List<?>) size).get(1)).intValue();
+            if (width > 0 && height > 0) {
+                return new ViewportSize(width, height);
+            }
+        }
+        throw new IllegalStateException("Cannot determine the viewport to restore after the capture matrix: " + size);
+    }
+
+    /**
+     * resizeViewport applies the size of the given viewport to the page. On Chromium, the device
+     * scale factor and mobile emulation are applied as well through the CDP session.
+     *
+     * @param page       The Page instance used to control the browser.
+     * @param cdpSession The CDP session of the page, or null when the browser is not Chromium.
+     * @param viewport   The viewport to apply.
+     */
+    private void resizeViewport(Page page, CDPSession cdpSession, Viewport viewport) {
+        if (cdpSession == null) {
+            // Other browsers keep the device scale factor of their context
+            LOGGER.log(Level.WARNING, "Device scale factor is only emulated on Chromium, using viewport size only for: " + viewport);
+            page.setViewportSize(viewport.getWidth(), viewport.getHeight());
+            return;
+        }
+
+        final JsonObject metrics = new JsonObject();
+        metrics.addProperty("width", viewport.getWidth());
+        metrics.addProperty("height", viewport.getHeight());
+        metrics.addProperty("deviceScaleFactor", viewport.getDeviceScaleFactor());
+        metrics.addProperty("mobile", viewport.isMobile());
+        cdpSession.send("Emulation.setDeviceMetricsOverride", metrics);
+        LOGGER.log(Level.INFO, "Viewport resized to: " + viewport);
+    }
+
+    /**
+     * startScreencast starts a CDP screencast of the page (Chromium only) and compares its frames, as they
+     * arrive, against the baseline frame sequence of the given name. Drive the transition to verify with
+     * Playwright calls, which also deliver the frames, then call stop on the returned recording.
+     *
+     * @param page The Page instance used to control the browser.
+     * @param name The name of the frame sequence under the baseline and screenshot directories.
+     * @return The running recording.
+     */
+    public ScreencastRecording startScreencast(Page page, String name) {
+        final Browser browser = page.context().browser();
+        if (browser == null || !"chromium".equals(browser.browserType().name())) {
+            throw new IllegalStateException("Screencast capture requires Chromium.");
+        }
+
+        final ScreencastRecording recording = new ScreencastRecording(name, new File(baselineDir + name), new File(screenshotDir + name));
+        final CDPSession cdpSession = page.context().newCDPSession(page);
+
+        // Hands each frame to the recording's bounded queue and acknowledges it once queued, so the browser
+        // only sends the next frame when the comparator keeps up
+        cdpSession.on("Page.screencastFrame", event -> {
+            recording.onFrame(Base64.getDecoder().decode(event.get("data").getAsString()));
+            final JsonObject acknowledgement = new JsonObject();
+            acknowledgement.addProperty("sessionId", event.get("sessionId").getAsInt());
+            cdpSession.send("Page.screencastFrameAck", acknowledgement);
+        });
+
+        final JsonObject parameters = new JsonObject();
+        parameters.addProperty("format", "png");
+        parameters.addProperty("everyNthFrame", 1);
+        cdpSession.send("Page.startScreencast", parameters);
+        recording.setStopAction(() -> {
+            cdpSession.send("Page.stopScreencast");
+            cdpSession.detach();
+        });
+        LOGGER.log(Level.INFO, "Screencast started: " + name);
+        return recording;
+    }
+
     /**
      * areImagesEqual compares two images (baseline and screenshot) and determines whether
      * they are identical. If they are not, it saves the differences to a specified directory.
@@ -99,11 +310,148 @@ public class ScreenshotUtility {
      * @return true if the images are identical, false otherwise.
      */
     public boolean areImagesEqual(String baseImage, String screenshot) {
-        // Reads the baseline image from the baseline directory
-        final BufferedImage baseBufferedImage = ImageComparisonUtil.readImageFromResources(BASELINE_DIR + baseImage + ".png");
+        final File screenshotFile = new File(screenshotDir + screenshot + ".png");
+
+        // Routes the comparison to the shared comparison service when one is configured
+        if (ComparisonClient.isEnabled()) {
+            final Boolean match = ComparisonClient.compare("playwright", imageDir, baseImage, screenshotFile);
+            if (match != null) {
+                return match;
+            }
+        }
 
         // Reads the screenshot image from the screenshot directory
-        final BufferedImage screenshotBufferedImage = ImageComparisonUtil.readImageFromResources(SCREENSHOT_DIR + screenshot + ".png");
+        return areImagesEqual(baseImage, ImageComparisonUtil.readImageFromResources(screenshotFile.getPath()));
+    }
+
+    /**
+     * areImagesEqual compares two images like areImagesEqual(baseImage, screenshot) and, when they differ,
+     * confirms the mismatch by re-capturing only the differing regions of the page. The comparison passes
+     * if a re-capture matches the baseline, so render flake does not fail the test.
+     *
+     * @param page       The Page instance the screenshot was taken from, still showing the same state.
+     * @param baseImage  The name of the baseline image to compare.
+     * @param screenshot The name of the screenshot to compare.
+     * @return true if the images are identical or the mismatch was not reproduced, false otherwise.
+     */
+    public boolean areImagesEqual(Page page, String baseImage, String screenshot) {
+        if (areImagesEqual(baseImage, screenshot)) {
+            return true;
+        }
+        if (page == null || !FlakeConfirmation.isEnabled()) {
+            return false;
+        }
+
+        // Region coordinates are in device pixels, clips are in CSS pixels
+        final double devicePixelRatio = ((Number) page.evaluate("window.devicePixelRatio")).doubleValue();
+        final BufferedImage baseBufferedImage = BaselineCache.read(new File(baselineDir + baseImage + ".png"));
+        final BufferedImage screenshotBufferedImage = ImageComparisonUtil.readImageFromResources(screenshotDir + screenshot + ".png");
+
+        // Re-captures the differing regions and compares them in memory with the same tolerance as the full comparison
+        final boolean flake = FlakeConfirmation.isFlake(baseBufferedImage, screenshotBufferedImage, (int) Math.ceil(devicePixelRatio),
+                region -> captureRegion(page, region, devicePixelRatio),
+                ScreenshotUtility::regionsEqual);
+        if (flake) {
+            deleteDifference(baseImage);
+            FailureMarkers.record(differenceDir, baseImage, true);
+            LOGGER.log(Level.INFO, "Images match after re-capturing the differing regions: " + baseImage);
+        }
+        return flake;
+    }
+
+    /**
+     * captureRegion captures one region of the full page, without saving it.
+     *
+     * @param page             The Page instance used to control the browser.
+     * @param region           The region to capture, in device pixels of the full page screenshot.
+     * @param devicePixelRatio The device pixel ratio of the page.
+     * @return The captured region, or null if it could not be decoded.
+     */
+    private BufferedImage captureRegion(Page page, Rectangle region, double devicePixelRatio) {
+        final byte[] bytes = page.screenshot(new Page.ScreenshotOptions().setFullPage(true)
+                .setClip(region.x / devicePixelRatio, region.y / devicePixelRatio,
+                        region.width / devicePixelRatio, region.height / devicePixelRatio));
+        try {
+            return ImageIO.read(new ByteArrayInputStream(bytes));
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Error while decoding region capture: " + ex.getMessage(), ex);
+            return null;
+        }
+    }
+
+    /**
+     * regionsEqual compares a baseline region with its re-capture in the configured comparison mode.
+     *
+     * @param expected The region of the baseline.
+     * @param actual   The re-captured region.
+     * @return true if the regions match.
+     */
+    private static boolean regionsEqual(BufferedImage expected, BufferedImage actual) {
+        if (PixelMatch.isEnabled()) {
+            return !PixelMatch.compare(expected, actual).hasDiff();
+        }
+        return ImageComparisonState.MATCH == new ImageComparison(expected, actual).compareImages().getImageComparisonState();
+    }
+
+    /**
+     * deleteDifference removes the difference image of a comparison whose mismatch turned out to be flake.
+     *
+     * @param baseImage The name of the baseline image.
+     */
+    private void deleteDifference(String baseImage) {
+        try {
+            Files.deleteIfExists(Paths.get(differenceDir + baseImage + ".png"));
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Error while deleting difference image: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * areImagesEqual compares a baseline image with a screenshot that is already held in memory.
+     * If they are not identical, it saves the differences to a specified directory.
+     *
+     * @param baseImage               The name of the baseline image to compare.
+     * @param screenshotBufferedImage The captured screenshot to compare.
+     * @return true if the images are identical, false otherwise.
+     */
+    public boolean areImagesEqual(String baseImage, BufferedImage screenshotBufferedImage) {
+        final boolean match = compareImages(baseImage, screenshotBufferedImage);
+
+        // Records the outcome, so that the baselines that failed can be selected for approval
+        FailureMarkers.record(differenceDir, baseImage, match);
+        return match;
+    }
+
+    /**
+     * compareImages compares a baseline image with a screenshot held in memory, using the sidecar
+     * shortcuts first, and saves the differences if they do not match.
+     *
+     * @param baseImage               The name of the baseline image to compare.
+     * @param screenshotBufferedImage The captured screenshot to compare.
+     * @return true if the images are identical, false otherwise.
+     */
+    private boolean compareImages(String baseImage, BufferedImage screenshotBufferedImage) {
+        // Uses the baseline sidecar to pass identical captures, or fail very different ones, without a pixel diff
+        final File baselineFile = new File(baselineDir + baseImage + ".png");
+        final ImageSidecar baselineSidecar = ImageSidecar.forBaseline(baselineFile);
+        if (baselineSidecar != null && screenshotBufferedImage != null) {
+            final ImageSidecar screenshotSidecar = ImageSidecar.of(screenshotBufferedImage);
+            if (baselineSidecar.isIdentical(screenshotSidecar)) {
+                LOGGER.log(Level.INFO, "Images are identical by pixel digest: " + baseImage);
+                return true;
+            }
+            final int distance = baselineSidecar.perceptualDistance(screenshotSidecar);
+            if (distance > ImageSidecar.FAIL_FAST_DISTANCE) {
+                LOGGER.log(Level.INFO, "Images differ by perceptual hash distance " + distance + ": " + baseImage);
+
+                // Saves the unmarked capture as the difference image, so the report still has an artifact
+                ImageComparisonUtil.saveImage(new File(differenceDir + baseImage + ".png"), screenshotBufferedImage);
+                return false;
+            }
+        }
+
+        // Reads the baseline image from the baseline directory, or from memory if it is unchanged
+        final BufferedImage baseBufferedImage = BaselineCache.read(baselineFile);
 
         // Logs an error if either of the images could not be loaded
         if (baseBufferedImage == null || screenshotBufferedImage == null) {
@@ -111,11 +459,25 @@ public class ScreenshotUtility {
             return false;
         }
 
+        // Classifies anti-aliasing differences instead of failing on them, when enabled and the sizes allow it
+        if (PixelMatch.isEnabled() && baseBufferedImage.getWidth() == screenshotBufferedImage.getWidth()
+                && baseBufferedImage.getHeight() == screenshotBufferedImage.getHeight()) {
+            final PixelMatch pixelMatch = PixelMatch.compare(baseBufferedImage, screenshotBufferedImage);
+            if (pixelMatch.hasDiff()) {
+                ImageComparisonUtil.saveImage(new File(differenceDir + baseImage + ".png"), pixelMatch.getMarkedImage());
+                LOGGER.log(Level.INFO, "Image difference saved for: " + baseImage + " (" + pixelMatch.getDifferentPixels()
+                        + " pixels changed, " + pixelMatch.getAntialiasedPixels() + " anti-aliased)");
+                return false;
+            }
+            LOGGER.log(Level.INFO, "Images match ignoring " + pixelMatch.getAntialiasedPixels() + " anti-aliased pixels: " + baseImage);
+            return true;
+        }
+
         // Compares the two images using ImageComparison
         final ImageComparisonResult imageComparisonResult = new ImageComparison(baseBufferedImage, screenshotBufferedImage).compareImages();
 
         // Save the image with differences marked to the difference directory if images don't match
-        final File outputFile = new File(DIFFERENCE_DIR + baseImage + ".png");
+        final File outputFile = new File(differenceDir + baseImage + ".png");
 
         // If images are not a match, save the result and return false
         if (ImageComparisonState.MATCH != imageComparisonResult.getImageComparisonState()) {
@@ -126,10 +488,71 @@ public class ScreenshotUtility {
 
         // Assert that images are a match (visual validation)
         Assert.assertEquals(ImageComparisonState.MATCH, imageComparisonResult.getImageComparisonState());
-        LOGGER.log(Level.INFO, "Images are identical: " + baseImage + " vs " + screenshot);
+        LOGGER.log(Level.INFO, "Images are identical: " + baseImage);
         return true;
     }
 
+    /**
+     * trackAssetValidators records the ETag or Last-Modified header of every response the page receives,
+     * so that render fingerprints also change when an asset changes behind an unchanged URL.
+     * Call it once, before the page navigates.
+     *
+     * @param page The Page instance used to control the browser.
+     */
+    public void trackAssetValidators(Page page) {
+        final Map<String, String> validators = new ConcurrentHashMap<>();
+        synchronized (ASSET_VALIDATORS) {
+            ASSET_VALIDATORS.put(page, validators);
+        }
+        page.onResponse(response -> {
+            final Map<String, String> headers = response.headers();
+            final String validator = headers.containsKey("etag") ? headers.get("etag") : headers.get("last-modified");
+            if (validator != null) {
+                validators.put(response.url(), validator);
+            }
+        });
+    }
+
+    /**
+     * renderFingerprint computes the fingerprint of the page as it renders now, from its serialized DOM,
+     * stylesheet text, asset URLs and validators, and viewport.
+     *
+     * @param page The Page instance used to control the browser.
+     * @return The fingerprint, or null when incremental mode is off.
+     */
+    public String renderFingerprint(Page page) {
+        if (page == null || !RenderFingerprint.isIncremental()) {
+            return null;
+        }
+        final Map<String, String> validators;
+        synchronized (ASSET_VALIDATORS) {
+            validators = ASSET_VALIDATORS.getOrDefault(page, Collections.emptyMap());
+        }
+        return RenderFingerprint.digest((String) page.evaluate(RenderFingerprint.RENDER_STATE_FUNCTION), validators);
+    }
+
+    /**
+     * isRenderUnchanged tells whether the capture and comparison of an image can be skipped because
+     * the page renders exactly as it did when it last passed against the current baseline.
+     *
+     * @param baseImage   The name of the baseline image.
+     * @param fingerprint The fingerprint returned by renderFingerprint.
+     * @return true if the page can be skipped.
+     */
+    public boolean isRenderUnchanged(String baseImage, String fingerprint) {
+        return RenderFingerprint.isUnchanged(new File(baselineDir + baseImage + ".png"), fingerprint);
+    }
+
+    /**
+     * saveRenderFingerprint records the fingerprint of a page next to its baseline after it passed.
+     *
+     * @param baseImage   The name of the baseline image.
+     * @param fingerprint The fingerprint returned by renderFingerprint.
+     */
+    public void saveRenderFingerprint(String baseImage, String fingerprint) {
+        RenderFingerprint.record(new File(baselineDir + baseImage + ".png"), fingerprint);
+    }
+
     /**
      * saveScreenshotPath constructs the file path for saving the screenshot.
      *
@@ -138,7 +561,7 @@ public class ScreenshotUtility {
      */
     private Path saveScreenshotPath(final String imageName) {
         // Constructs the file path for the screenshot
-        final File outputFile = new File(ScreenshotUtility.SCREENSHOT_DIR + imageName + ".png");
+        final File outputFile = new File(screenshotDir + imageName + ".png");
 
         // Logs the location where the screenshot was saved
         LOGGER.log(Level.INFO, "Screenshot saved at: " + outputFile.getAbsolutePath());
@@ -0,0 +1,70 @@
+package qa.jaga.core.playwright;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Viewport class describes a breakpoint at which a page is captured: its size in CSS pixels,
+ * its device scale factor, and whether it emulates a mobile device.
+ * The name is appended to the image name so that every viewport has its own baseline.
+ */
+public final class Viewport {
+
+    // Common breakpoints used for responsive visual verification
+    public static final Viewport MOBILE = new Viewport("mobile", 375, 812, 3, true);
+    public static final Viewport TABLET = new Viewport("tablet", 768, 1024, 2, true);
+    public static final Viewport DESKTOP = new Viewport("desktop", 1920, 1080, 1, false);
+
+    // Default capture matrix, from the smallest to the largest breakpoint
+    public static final List<Viewport> BREAKPOINTS = Collections.unmodifiableList(Arrays.asList(MOBILE, TABLET, DESKTOP));
+
+    private final String name;
+    private final int width;
+    private final int height;
+    private final double deviceScaleFactor;
+    private final boolean mobile;
+
+    /**
+     * Constructor creates a viewport definition.
+     *
+     * @param name              The name appended to the image name, e.g. "mobile".
+     * @param width             The viewport width in CSS pixels.
+     * @param height            The viewport height in CSS pixels.
+     * @param deviceScaleFactor The device pixel ratio to emulate.
+     * @param mobile            Whether to emulate a mobile device (meta viewport, overlay scrollbars).
+     */
+    public Viewport(String name, int width, int height, double deviceScaleFactor, boolean mobile) {
+        this.name = name;
+        this.width = width;
+        this.height = height;
+        this.deviceScaleFactor = deviceScaleFactor;
+        this.mobile = mobile;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public double getDeviceScaleFactor() {
+        return deviceScaleFactor;
+    }
+
+    public boolean isMobile() {
+        return mobile;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + width + "x" + height + " @" + deviceScaleFactor + "x)";
+    }
+
+}
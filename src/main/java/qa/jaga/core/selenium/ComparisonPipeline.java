@@ -0,0 +1,154 @@
+package qa.jaga.core.selenium;
+
+import qa.jaga.core.service.ComparisonClient;
+
+import java.awt.image.BufferedImage;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ComparisonPipeline class hands captured screenshots from the browser thread to a pool of
+ * comparison workers, so that navigation and image diffing overlap instead of running back to back.
+ * The hand-off is bounded: the browser thread blocks when the workers fall behind.
+ */
+public class ComparisonPipeline implements AutoCloseable {
+
+    // Logger to log messages and errors to the console
+    private static final Logger LOGGER = Logger.getLogger(ComparisonPipeline.class.getName());
+
+    // Default number of captured images allowed to wait for a free worker
+    private static final int DEFAULT_QUEUE_CAPACITY = 4;
+
+    // Utility used by the workers to save and compare the captured images
+    private final ScreenshotUtility screenshotUtility;
+
+    // Pool of comparison workers
+    private final ExecutorService workers;
+
+    // Bounds the number of images held in memory between capture and comparison
+    private final Semaphore slots;
+
+    // Pending comparison results keyed by image name
+    private final Map<String, Future<Boolean>> results = new ConcurrentHashMap<>();
+
+    // Total time spent by the workers saving and comparing images
+    private final AtomicLong compareNanos = new AtomicLong();
+
+    /**
+     * Constructor creates a pipeline with one worker per available processor.
+     *
+     * @param screenshotUtility The utility used to save and compare the captured images.
+     */
+    public ComparisonPipeline(ScreenshotUtility screenshotUtility) {
+        this(screenshotUtility, Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Constructor creates a pipeline with the given number of workers and hand-off capacity.
+     *
+     * @param screenshotUtility The utility used to save and compare the captured images.
+     * @param workerCount       The number of comparison workers.
+     * @param queueCapacity     The number of captured images allowed to wait for a free worker.
+     */
+    public ComparisonPipeline(ScreenshotUtility screenshotUtility, int workerCount, int queueCapacity) {
+        this.screenshotUtility = screenshotUtility;
+        this.slots = new Semaphore(workerCount + queueCapacity);
+
+        // Worker threads are daemons so a forgotten pipeline never keeps the JVM alive
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+            Thread thread = new Thread(runnable, "comparison-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * submit hands a captured image to the comparison workers. It blocks while the
+     * hand-off is full, which keeps memory bounded when capturing outpaces comparing.
+     *
+     * @param imageName The name of the baseline image and of the screenshot to save.
+     * @param image     The captured screenshot.
+     * @throws InterruptedException if the calling thread is interrupted while waiting for a free slot.
+     */
+    public void submit(String imageName, BufferedImage image) throws InterruptedException {
+        slots.acquire();
+        try {
+            results.put(imageName, workers.submit(() -> {
+                long start = System.nanoTime();
+                try {
+                    // Saves the screenshot so failed rows can be inspected and promoted later
+                    screenshotUtility.saveScreenshot(image, imageName);
+
+                    // Routes through the saved file when a comparison service is configured, in-memory otherwise
+                    return ComparisonClient.isEnabled()
+                            ? screenshotUtility.areImagesEqual(imageName, imageName)
+                            : screenshotUtility.areImagesEqual(imageName, image);
+                } finally {
+                    compareNanos.addAndGet(System.nanoTime() - start);
+                    slots.release();
+                }
+            }));
+        } catch (RuntimeException ex) {
+            slots.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * awaitResult waits for the comparison of the given image to finish.
+     *
+     * @param imageName The name of the image that was submitted.
+     * @return true if the images are identical, false if they differ, the comparison failed,
+     * or the image was never submitted.
+     */
+    public boolean awaitResult(String imageName) {
+        Future<Boolean> result = results.get(imageName);
+
+        // Logs an error if the image was never captured
+        if (result == null) {
+            LOGGER.log(Level.SEVERE, "No capture was submitted for: " + imageName);
+            return false;
+        }
+
+        try {
+            return result.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            LOGGER.log(Level.SEVERE, "Interrupted while waiting for comparison of: " + imageName, ex);
+        } catch (ExecutionException ex) {
+            // Logs any errors that occur while comparing the images
+            LOGGER.log(Level.SEVERE, "Error while comparing images: " + ex.getCause().getMessage(), ex.getCause());
+        }
+        return false;
+    }
+
+    /**
+     * close waits for the pending comparisons to finish and shuts the workers down.
+     */
+    @Override
+    public void close() {
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException ex) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        LOGGER.log(Level.INFO, "Compared " + results.size() + " images using "
+                + TimeUnit.NANOSECONDS.toMillis(compareNanos.get()) + " ms of worker time.");
+    }
+
+}
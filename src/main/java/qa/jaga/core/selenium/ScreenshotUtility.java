@@ -1,20 +1,44 @@
 package qa.jaga.core.selenium;
 
+import org.openqa.selenium.JavascriptExecutor;
 import org.openqa.selenium.WebDriver;
 import org.openqa.selenium.WebElement;
+import org.openqa.selenium.devtools.Command;
+import org.openqa.selenium.devtools.DevTools;
+import org.openqa.selenium.devtools.Event;
+import org.openqa.selenium.devtools.HasDevTools;
+import org.openqa.selenium.json.Json;
 import ru.yandex.qatools.ashot.AShot;
 import ru.yandex.qatools.ashot.Screenshot;
 import ru.yandex.qatools.ashot.comparison.ImageDiff;
 import ru.yandex.qatools.ashot.comparison.ImageDiffer;
 import ru.yandex.qatools.ashot.shooting.ShootingStrategies;
+import qa.jaga.core.common.BaselineCache;
+import qa.jaga.core.common.FailureMarkers;
+import qa.jaga.core.common.FlakeConfirmation;
+import qa.jaga.core.common.ImageSidecar;
+import qa.jaga.core.common.PixelMatch;
+import qa.jaga.core.common.RenderFingerprint;
+import qa.jaga.core.common.ScreencastRecording;
+import qa.jaga.core.service.ComparisonClient;
 
 import javax.imageio.ImageIO;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -28,24 +52,46 @@ public class ScreenshotUtility {
     // Logger to log messages and errors to the console
     private static final Logger LOGGER = Logger.getLogger(ScreenshotUtility.class.getName());
 
-    // Constants for directories where screenshots, baseline images, and differences are stored
-    private static final String SCREENSHOT_DIR = System.getProperty("user.dir") + "/src/main/resources/selenium/images/screenshot/";
-    private static final String BASELINE_DIR = System.getProperty("user.dir") + "/src/main/resources/selenium/images/baseline/";
-    private static final String DIFFERENCE_DIR = System.getProperty("user.dir") + "/src/main/resources/selenium/images/difference/";
+    // Default root directory under which screenshots, baseline images, and differences are stored
+    private static final String IMAGE_DIR = System.getProperty("user.dir") + "/src/main/resources/selenium/images/";
+
+    // Validators (ETag or Last-Modified) of the responses received by each tracked driver, keyed by URL
+    private static final Map<WebDriver, Map<String, String>> ASSET_VALIDATORS = new WeakHashMap<>();
+
+    // Directories where screenshots, baseline images, and differences are stored
+    private final String imageDir;
+    private final String screenshotDir;
+    private final String baselineDir;
+    private final String differenceDir;
 
     /**
      * Constructor initializes the ScreenshotUtility by ensuring that the necessary
      * directories for screenshots, baselines, and differences exist.
      */
     public ScreenshotUtility() {
+        this(IMAGE_DIR);
+    }
+
+    /**
+     * Constructor initializes the ScreenshotUtility with a custom image root directory.
+     * The screenshot, baseline, and difference directories are created under it if they do not exist.
+     *
+     * @param imageDir The root directory containing the screenshot, baseline, and difference directories.
+     */
+    public ScreenshotUtility(String imageDir) {
+        this.imageDir = imageDir.endsWith("/") ? imageDir : imageDir + "/";
+        this.screenshotDir = this.imageDir + "screenshot/";
+        this.baselineDir = this.imageDir + "baseline/";
+        this.differenceDir = this.imageDir + "difference/";
+
         // Ensures the screenshot directory exists or creates it
-        createDirectoryIfNotExist(SCREENSHOT_DIR);
+        createDirectoryIfNotExist(screenshotDir);
 
         // Ensures the baseline directory exists or creates it
-        createDirectoryIfNotExist(BASELINE_DIR);
+        createDirectoryIfNotExist(baselineDir);
 
         // Ensures the difference directory exists or creates it
-        createDirectoryIfNotExist(DIFFERENCE_DIR);
+        createDirectoryIfNotExist(differenceDir);
     }
 
     /**
@@ -61,11 +107,21 @@ public class ScreenshotUtility {
             LOGGER.log(Level.WARNING, "Driver is null.");
         }
 
+        // Saves the captured page image to the specified directory
+        saveScreenshot(capturePageImage(driver), imageName, screenshotDir);
+    }
+
+    /**
+     * capturePageImage captures the entire web page, including parts that are off-screen,
+     * and returns it in memory without writing it to disk.
+     *
+     * @param driver The WebDriver instance used to control the browser.
+     * @return The captured page as a BufferedImage.
+     */
+    public BufferedImage capturePageImage(WebDriver driver) {
         // Uses AShot to capture the entire web page screenshot
         Screenshot screenshot = new AShot().shootingStrategy(ShootingStrategies.viewportPasting(100)).takeScreenshot(driver);
-
-        // Saves the captured screenshot to the specified directory
-        saveScreenshot(screenshot.getImage(), imageName, SCREENSHOT_DIR);
+        return screenshot.getImage();
     }
 
     /**
@@ -91,7 +147,50 @@ public class ScreenshotUtility {
         Screenshot screenshot = new AShot().takeScreenshot(driver, element);
 
         // Saves the captured screenshot to the specified directory
-        saveScreenshot(screenshot.getImage(), imageName, SCREENSHOT_DIR);
+        saveScreenshot(screenshot.getImage(), imageName, screenshotDir);
+    }
+
+    /**
+     * startScreencast starts a CDP screencast of the current page (Chromium only) and compares its frames,
+     * as they arrive, against the baseline frame sequence of the given name. Drive the transition to
+     * verify, then call stop on the returned recording.
+     *
+     * @param driver The WebDriver instance used to control the browser.
+     * @param name   The name of the frame sequence under the baseline and screenshot directories.
+     * @return The running recording.
+     */
+    public ScreencastRecording startScreencast(WebDriver driver, String name) {
+        if (!(driver instanceof HasDevTools)) {
+            throw new IllegalStateException("Screencast capture requires a Chromium driver.");
+        }
+
+        final ScreencastRecording recording = new ScreencastRecording(name, new File(baselineDir + name), new File(screenshotDir + name));
+        final DevTools devTools = ((HasDevTools) driver).getDevTools();
+        devTools.createSessionIfThereIsNotOne();
+
+        // Hands each frame to the recording's bounded queue and acknowledges it once queued, so the browser
+        // only sends the next frame when the comparator keeps up. DevTools listeners cannot be removed one by
+        // one without clearing those of other callers, so this one ignores frames once the recording stops.
+        final AtomicBoolean active = new AtomicBoolean(true);
+        devTools.addListener(new Event<Map<String, Object>>("Page.screencastFrame", input -> input.read(Json.MAP_TYPE)), event -> {
+            if (!active.get()) {
+                return;
+            }
+            recording.onFrame(Base64.getDecoder().decode((String) event.get("data")));
+            devTools.send(new Command<Void>("Page.screencastFrameAck",
+                    Collections.singletonMap("sessionId", event.get("sessionId"))).doesNotSendResponse());
+        });
+
+        final Map<String, Object> parameters = new HashMap<>();
+        parameters.put("format", "png");
+        parameters.put("everyNthFrame", 1);
+        devTools.send(new Command<Void>("Page.startScreencast", parameters));
+        recording.setStopAction(() -> {
+            active.set(false);
+            devTools.send(new Command<Void>("Page.stopScreencast", Collections.emptyMap()));
+        });
+        LOGGER.log(Level.INFO, "Screencast started: " + name);
+        return recording;
     }
 
     /**
@@ -103,39 +202,314 @@ public class ScreenshotUtility {
      * @return true if the images are identical, false otherwise.
      */
     public boolean areImagesEqual(String baseImage, String screenshot) {
-        BufferedImage baseBufferedImage;
+        final File screenshotFile = new File(screenshotDir + screenshot + ".png");
+
+        // Routes the comparison to the shared comparison service when one is configured
+        if (ComparisonClient.isEnabled()) {
+            final Boolean match = ComparisonClient.compare("selenium", imageDir, baseImage, screenshotFile);
+            if (match != null) {
+                return match;
+            }
+        }
+
         BufferedImage screenshotBufferedImage;
         try {
-            // Reads the baseline image from the baseline directory
-            baseBufferedImage = ImageIO.read(new File(BASELINE_DIR + baseImage + ".png"));
+            // Reads the screenshot image from the screenshot directory
+            screenshotBufferedImage = ImageIO.read(screenshotFile);
+        } catch (IOException ex) {
+            // An unreadable screenshot fails the comparison, like a missing baseline does
+            LOGGER.log(Level.SEVERE, "Error while comparing images: " + ex.getMessage(), ex);
+            FailureMarkers.record(differenceDir, baseImage, false);
+            return false;
+        }
+        return areImagesEqual(baseImage, screenshotBufferedImage);
+    }
+
+    /**
+     * areImagesEqual compares two images like areImagesEqual(baseImage, screenshot) and, when they differ,
+     * confirms the mismatch by re-capturing only the differing regions of the page through CDP
+     * (Chromium drivers only). The comparison passes if a re-capture matches the baseline, so render
+     * flake does not fail the test.
+     *
+     * @param driver     The WebDriver instance the screenshot was taken from, still showing the same state.
+     * @param baseImage  The name of the baseline image to compare.
+     * @param screenshot The name of the screenshot to compare.
+     * @return true if the images are identical or the mismatch was not reproduced, false otherwise.
+     */
+    public boolean areImagesEqual(WebDriver driver, String baseImage, String screenshot) {
+        if (areImagesEqual(baseImage, screenshot)) {
+            return true;
+        }
+        if (!(driver instanceof HasDevTools) || !FlakeConfirmation.isEnabled()) {
+            return false;
+        }
 
+        BufferedImage screenshotBufferedImage;
+        try {
             // Reads the screenshot image from the screenshot directory
-            screenshotBufferedImage = ImageIO.read(new File(SCREENSHOT_DIR + screenshot + ".png"));
+            screenshotBufferedImage = ImageIO.read(new File(screenshotDir + screenshot + ".png"));
+        } catch (IOException ex) {
+            LOGGER.log(Level.SEVERE, "Error while reading screenshot: " + ex.getMessage(), ex);
+            return false;
+        }
+
+        // Region coordinates are in device pixels, clips are in CSS pixels
+        final double devicePixelRatio = ((Number) ((JavascriptExecutor) driver).executeScript("return window.devicePixelRatio;")).doubleValue();
+        final DevTools devTools = ((HasDevTools) driver).getDevTools();
+        devTools.createSessionIfThereIsNotOne();
+
+        // Re-captures the differing regions and compares them in memory with the same tolerance as the full comparison
+        final boolean flake = FlakeConfirmation.isFlake(BaselineCache.read(new File(baselineDir + baseImage + ".png")),
+                screenshotBufferedImage, (int) Math.ceil(devicePixelRatio),
+                region -> captureRegion(devTools, region, devicePixelRatio),
+                ScreenshotUtility::regionsEqual);
+        if (flake) {
+            deleteDifference(baseImage);
+            FailureMarkers.record(differenceDir, baseImage, true);
+            LOGGER.log(Level.INFO, "Images match after re-capturing the differing regions: " + baseImage);
+        }
+        return flake;
+    }
+
+    /**
+     * captureRegion captures one region of the full page through CDP, without saving it.
+     *
+     * @param devTools         The DevTools session of the driver.
+     * @param region           The region to capture, in device pixels of the full page screenshot.
+     * @param devicePixelRatio The device pixel ratio of the page.
+     * @return The captured region, or null if it could not be decoded.
+     */
+    private BufferedImage captureRegion(DevTools devTools, Rectangle region, double devicePixelRatio) {
+        final Map<String, Object> clip = new HashMap<>();
+        clip.put("x", region.x / devicePixelRatio);
+        clip.put("y", region.y / devicePixelRatio);
+        clip.put("width", region.width / devicePixelRatio);
+        clip.put("height", region.height / devicePixelRatio);
+        clip.put("scale", 1);
+
+        final Map<String, Object> parameters = new HashMap<>();
+        parameters.put("format", "png");
+        parameters.put("clip", clip);
+        parameters.put("captureBeyondViewport", true);
+        final Map<String, Object> result = devTools.send(new Command<Map<String, Object>>("Page.captureScreenshot",
+                parameters, input -> input.read(Json.MAP_TYPE)));
+        try {
+            return ImageIO.read(new ByteArrayInputStream(Base64.getDecoder().decode((String) result.get("data"))));
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Error while decoding region capture: " + ex.getMessage(), ex);
+            return null;
+        }
+    }
+
+    /**
+     * regionsEqual compares a baseline region with its re-capture in the configured comparison mode.
+     *
+     * @param expected The region of the baseline.
+     * @param actual   The re-captured region.
+     * @return true if the regions match.
+     */
+    private static boolean regionsEqual(BufferedImage expected, BufferedImage actual) {
+        if (PixelMatch.isEnabled()) {
+            return !PixelMatch.compare(expected, actual).hasDiff();
+        }
+        return !new ImageDiffer().makeDiff(expected, actual).hasDiff();
+    }
+
+    /**
+     * deleteDifference removes the difference image of a comparison whose mismatch turned out to be flake.
+     *
+     * @param baseImage The name of the baseline image.
+     */
+    private void deleteDifference(String baseImage) {
+        try {
+            Files.deleteIfExists(Paths.get(differenceDir + baseImage + ".png"));
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Error while deleting difference image: " + ex.getMessage(), ex);
+        }
+    }
 
-            // Logs an error if either of the images could not be loaded
-            if (baseBufferedImage == null || screenshotBufferedImage == null) {
-                LOGGER.log(Level.SEVERE, "One or both images could not be loaded.");
+    /**
+     * areImagesEqual compares a baseline image with a screenshot that is already held in memory.
+     * If they are not identical, it saves the differences to a specified directory.
+     *
+     * @param baseImage               The name of the baseline image to compare.
+     * @param screenshotBufferedImage The captured screenshot to compare.
+     * @return true if the images are identical, false otherwise.
+     */
+    public boolean areImagesEqual(String baseImage, BufferedImage screenshotBufferedImage) {
+        final boolean match = compareImages(baseImage, screenshotBufferedImage);
+
+        // Records the outcome, so that the baselines that failed can be selected for approval
+        FailureMarkers.record(differenceDir, baseImage, match);
+        return match;
+    }
+
+    /**
+     * compareImages compares a baseline image with a screenshot held in memory, using the sidecar
+     * shortcuts first, and saves the differences if they do not match.
+     *
+     * @param baseImage               The name of the baseline image to compare.
+     * @param screenshotBufferedImage The captured screenshot to compare.
+     * @return true if the images are identical, false otherwise.
+     */
+    private boolean compareImages(String baseImage, BufferedImage screenshotBufferedImage) {
+        // Uses the baseline sidecar to pass identical captures, or fail very different ones, without a pixel diff
+        final File baselineFile = new File(baselineDir + baseImage + ".png");
+        final ImageSidecar baselineSidecar = ImageSidecar.forBaseline(baselineFile);
+        if (baselineSidecar != null && screenshotBufferedImage != null) {
+            final ImageSidecar screenshotSidecar = ImageSidecar.of(screenshotBufferedImage);
+            if (baselineSidecar.isIdentical(screenshotSidecar)) {
+                LOGGER.log(Level.INFO, "Images are identical by pixel digest: " + baseImage);
+                return true;
+            }
+            final int distance = baselineSidecar.perceptualDistance(screenshotSidecar);
+            if (distance > ImageSidecar.FAIL_FAST_DISTANCE) {
+                LOGGER.log(Level.INFO, "Images differ by perceptual hash distance " + distance + ": " + baseImage);
+
+                // Saves the unmarked capture as the difference image, so the report still has an artifact
+                saveScreenshot(screenshotBufferedImage, baseImage, differenceDir);
                 return false;
             }
+        }
 
-            // Compares the two images using ImageDiffer
-            ImageDiff imageDiff = new ImageDiffer().makeDiff(baseBufferedImage, screenshotBufferedImage);
+        // Reads the baseline image from the baseline directory, or from memory if it is unchanged
+        BufferedImage baseBufferedImage = BaselineCache.read(baselineFile);
 
-            // If a difference is found, marks the differences and saves the result image
-            if (imageDiff.hasDiff()) {
-                BufferedImage differentBufferedImage = imageDiff.getMarkedImage();
+        // Logs an error if either of the images could not be loaded
+        if (baseBufferedImage == null || screenshotBufferedImage == null) {
+            LOGGER.log(Level.SEVERE, "One or both images could not be loaded.");
+            return false;
+        }
 
-                // Saves the image with differences marked to the difference directory
-                saveScreenshot(differentBufferedImage, baseImage, DIFFERENCE_DIR);
-                return false; // Returns false if images are not equal
+        // Classifies anti-aliasing differences instead of failing on them, when enabled and the sizes allow it
+        if (PixelMatch.isEnabled() && baseBufferedImage.getWidth() == screenshotBufferedImage.getWidth()
+                && baseBufferedImage.getHeight() == screenshotBufferedImage.getHeight()) {
+            final PixelMatch pixelMatch = PixelMatch.compare(baseBufferedImage, screenshotBufferedImage);
+            if (pixelMatch.hasDiff()) {
+                saveScreenshot(pixelMatch.getMarkedImage(), baseImage, differenceDir);
+                LOGGER.log(Level.INFO, "Image difference saved for: " + baseImage + " (" + pixelMatch.getDifferentPixels()
+                        + " pixels changed, " + pixelMatch.getAntialiasedPixels() + " anti-aliased)");
+                return false;
             }
-        } catch (IOException ex) {
-            // Logs any errors that occur while comparing the images
-            LOGGER.log(Level.SEVERE, "Error while comparing images: " + ex.getMessage(), ex);
+            LOGGER.log(Level.INFO, "Images match ignoring " + pixelMatch.getAntialiasedPixels() + " anti-aliased pixels: " + baseImage);
+            return true;
+        }
+
+        // Compares the two images using ImageDiffer
+        ImageDiff imageDiff = new ImageDiffer().makeDiff(baseBufferedImage, screenshotBufferedImage);
+
+        // If a difference is found, marks the differences and saves the result image
+        if (imageDiff.hasDiff()) {
+            BufferedImage differentBufferedImage = imageDiff.getMarkedImage();
+
+            // Saves the image with differences marked to the difference directory
+            saveScreenshot(differentBufferedImage, baseImage, differenceDir);
+            return false; // Returns false if images are not equal
         }
         return true; // Returns true if images are equal
     }
 
+    /**
+     * saveScreenshot saves an image that was captured in memory to the screenshot directory.
+     *
+     * @param image     The BufferedImage to save.
+     * @param imageName The name of the image file.
+     */
+    public void saveScreenshot(BufferedImage image, String imageName) {
+        saveScreenshot(image, imageName, screenshotDir);
+    }
+
+    /**
+     * trackAssetValidators records the ETag or Last-Modified header of every response the browser receives,
+     * through the CDP Network domain (Chromium drivers only), so that render fingerprints also change when
+     * an asset changes behind an unchanged URL. Call it once, before the page navigates.
+     *
+     * @param driver The WebDriver instance used to control the browser.
+     */
+    public void trackAssetValidators(WebDriver driver) {
+        if (!(driver instanceof HasDevTools)) {
+            LOGGER.log(Level.WARNING, "Asset validators require a Chromium driver; incremental mode stays off for this driver.");
+            return;
+        }
+        final Map<String, String> validators = new ConcurrentHashMap<>();
+        synchronized (ASSET_VALIDATORS) {
+            ASSET_VALIDATORS.put(driver, validators);
+        }
+
+        final DevTools devTools = ((HasDevTools) driver).getDevTools();
+        devTools.createSessionIfThereIsNotOne();
+        devTools.addListener(new Event<Map<String, Object>>("Network.responseReceived", input -> input.read(Json.MAP_TYPE)), event -> {
+            final Map<?, ?> response = (Map<?, ?>) event.get("response");
+            final Map<?, ?> headers = (Map<?, ?>) response.get("headers");
+            if (headers == null) {
+                return;
+            }
+
+            // Header names keep the case the server sent over HTTP/1.1
+            String etag = null;
+            String lastModified = null;
+            for (Map.Entry<?, ?> header : headers.entrySet()) {
+                final String headerName = String.valueOf(header.getKey()).toLowerCase(Locale.ROOT);
+                if (headerName.equals("etag")) {
+                    etag = String.valueOf(header.getValue());
+                } else if (headerName.equals("last-modified")) {
+                    lastModified = String.valueOf(header.getValue());
+                }
+            }
+            final String validator = etag != null ? etag : lastModified;
+            if (validator != null) {
+                validators.put(String.valueOf(response.get("url")), validator);
+            }
+        });
+        devTools.send(new Command<Void>("Network.enable", Collections.emptyMap()));
+    }
+
+    /**
+     * renderFingerprint computes the fingerprint of the page as it renders now, from its serialized DOM,
+     * stylesheet text, asset URLs and validators, and viewport. Drivers whose asset validators are not
+     * tracked get no fingerprint, since a changed asset behind an unchanged URL would go unnoticed.
+     *
+     * @param driver The WebDriver instance used to control the browser.
+     * @return The fingerprint, or null when incremental mode is off or the validators are not tracked.
+     */
+    public String renderFingerprint(WebDriver driver) {
+        if (!(driver instanceof JavascriptExecutor) || !RenderFingerprint.isIncremental()) {
+            return null;
+        }
+        final Map<String, String> validators;
+        synchronized (ASSET_VALIDATORS) {
+            validators = ASSET_VALIDATORS.get(driver);
+        }
+        if (validators == null) {
+            return null;
+        }
+        final Object renderState = ((JavascriptExecutor) driver)
+                .executeScript("return (" + RenderFingerprint.RENDER_STATE_FUNCTION + ")();");
+        return RenderFingerprint.digest(String.valueOf(renderState), validators);
+    }
+
+    /**
+     * isRenderUnchanged tells whether the capture and comparison of an image can be skipped because
+     * the page renders exactly as it did when it last passed against the current baseline.
+     *
+     * @param baseImage   The name of the baseline image.
+     * @param fingerprint The fingerprint returned by renderFingerprint.
+     * @return true if the page can be skipped.
+     */
+    public boolean isRenderUnchanged(String baseImage, String fingerprint) {
+        return RenderFingerprint.isUnchanged(new File(baselineDir + baseImage + ".png"), fingerprint);
+    }
+
+    /**
+     * saveRenderFingerprint records the fingerprint of a page next to its baseline after it passed.
+     *
+     * @param baseImage   The name of the baseline image.
+     * @param fingerprint The fingerprint returned by renderFingerprint.
+     */
+    public void saveRenderFingerprint(String baseImage, String fingerprint) {
+        RenderFingerprint.record(new File(baselineDir + baseImage + ".png"), fingerprint);
+    }
+
     /**
      * saveScreenshot saves the given BufferedImage to the specified directory with the
      * provided image name.
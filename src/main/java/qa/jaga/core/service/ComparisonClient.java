@@ -0,0 +1,113 @@
+package qa.jaga.core.service;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ComparisonClient class routes image comparisons from a test JVM to a local {@link ComparisonService}.
+ * Routing is enabled with {@code -Dvisual.compareService=http://127.0.0.1:4545}; when the service is
+ * not configured or cannot be reached, callers fall back to comparing in-process.
+ */
+public final class ComparisonClient {
+
+    // Logger to log messages and errors to the console
+    private static final Logger LOGGER = Logger.getLogger(ComparisonClient.class.getName());
+
+    // Base URL of the comparison service, if routing is enabled
+    private static final String SERVICE_URL = System.getProperty("visual.compareService");
+
+    private ComparisonClient() {
+    }
+
+    /**
+     * isEnabled tells whether comparisons should be routed to the comparison service.
+     *
+     * @return true if a comparison service URL is configured.
+     */
+    public static boolean isEnabled() {
+        return SERVICE_URL != null && !SERVICE_URL.isEmpty();
+    }
+
+    /**
+     * compare submits a screenshot to the comparison service and waits for the result.
+     *
+     * @param engine         The engine whose comparison logic to use, "selenium" or "playwright".
+     * @param imageDir       The root directory holding the baseline and difference directories.
+     * @param baseImage      The name of the baseline image to compare against.
+     * @param screenshotFile The screenshot PNG file to submit.
+     * @return true or false as reported by the service, or null if the service could not be used,
+     * in which case the caller compares in-process.
+     */
+    public static Boolean compare(String engine, String imageDir, String baseImage, File screenshotFile) {
+        HttpURLConnection connection = null;
+        try {
+            final byte[] screenshot = Files.readAllBytes(screenshotFile.toPath());
+            final URL url = new URL(SERVICE_URL + "/compare?engine=" + engine
+                    + "&imageDir=" + URLEncoder.encode(imageDir, "UTF-8")
+                    + "&baseline=" + URLEncoder.encode(baseImage, "UTF-8"));
+
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "image/png");
+            connection.setConnectTimeout(1000);
+            connection.setReadTimeout(120_000);
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(screenshot.length);
+            try (OutputStream outputStream = connection.getOutputStream()) {
+                outputStream.write(screenshot);
+            }
+
+            final int status = connection.getResponseCode();
+            final JsonObject result = new Gson().fromJson(readBody(status < 400
+                    ? connection.getInputStream() : connection.getErrorStream()), JsonObject.class);
+
+            // Falls back to an in-process comparison when the service rejects or fails the request
+            if (status != 200 || result == null || !result.has("match")) {
+                LOGGER.log(Level.WARNING, "Comparison service failed for " + baseImage + ": " + result);
+                return null;
+            }
+            LOGGER.log(Level.INFO, "Comparison service compared " + baseImage + " in "
+                    + result.get("durationMillis").getAsLong() + " ms.");
+            return result.get("match").getAsBoolean();
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.log(Level.WARNING, "Comparison service unavailable, comparing in-process: " + ex.getMessage());
+            return null;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * readBody reads a response body as UTF-8 text.
+     */
+    private static String readBody(InputStream inputStream) throws IOException {
+        if (inputStream == null) {
+            return "";
+        }
+        try (InputStream body = inputStream) {
+            final ByteArrayOutputStream text = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                text.write(buffer, 0, read);
+            }
+            return new String(text.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+}
@@ -0,0 +1,368 @@
+package qa.jaga.core.service;
+
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ComparisonService class is an optional local daemon that runs the areImagesEqual logic of both
+ * ScreenshotUtility classes on behalf of many test JVMs on the same machine. Baselines stay decoded
+ * in memory, the diff code stays warm, and comparisons run on a worker pool sized to the machine.
+ * Request bodies are received on a separate dispatcher pool, so slow uploads do not hold a worker and
+ * the metrics stay available while comparisons are queued.
+ * <p>
+ * API (loopback HTTP):
+ * <ul>
+ *     <li>{@code POST /compare?engine=selenium|playwright&imageDir=<path>&baseline=<name>} with the screenshot PNG as body,
+ *     returns {@code {"engine":..,"baseline":..,"match":..,"durationMillis":..,"uploadMillis":..}} or an {@code error} field.
+ *     {@code durationMillis} covers the decode and comparison only, {@code uploadMillis} the reading of the body.</li>
+ *     <li>{@code GET /metrics} returns queue depth, active and completed comparisons, and comparison and upload
+ *     latency percentiles.</li>
+ * </ul>
+ * The service reads baselines and writes difference images under the image directory sent by the
+ * caller, so it must run on the same machine as the test JVMs. Only the image roots allowed at startup
+ * are accepted, baseline names must not contain path separators, and the body must be sent as
+ * {@code image/png}, which a web page cannot send to the service without a CORS preflight.
+ * Test JVMs route to it with {@code -Dvisual.compareService=http://127.0.0.1:4545}.
+ */
+public class ComparisonService implements AutoCloseable {
+
+    // Logger to log messages and errors to the console
+    private static final Logger LOGGER = Logger.getLogger(ComparisonService.class.getName());
+
+    // Number of recent comparison latencies kept for the percentiles
+    private static final int LATENCY_WINDOW = 1024;
+
+    // Default image roots of both engines, allowed unless others are given at startup
+    private static final List<String> DEFAULT_IMAGE_ROOTS = Arrays.asList(
+            System.getProperty("user.dir") + "/src/main/resources/selenium/images/",
+            System.getProperty("user.dir") + "/src/main/resources/playwright/images/");
+
+    private final HttpServer server;
+    private final ExecutorService dispatcher;
+    private final ThreadPoolExecutor workers;
+
+    // Normalized absolute image roots requests may compare under
+    private final List<Path> imageRoots = new ArrayList<>();
+
+    // Factories creating the in-memory comparison of each engine for an image directory, keyed by engine name
+    private final Map<String, Function<String, BiFunction<String, BufferedImage, Boolean>>> engines = new HashMap<>();
+
+    // Comparisons created so far, keyed by engine name and image directory
+    private final Map<String, BiFunction<String, BufferedImage, Boolean>> comparisons = new ConcurrentHashMap<>();
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong mismatches = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    // Recent comparison and upload latencies in milliseconds
+    private final LatencyWindow compareLatencies = new LatencyWindow();
+    private final LatencyWindow uploadLatencies = new LatencyWindow();
+
+    /**
+     * Constructor creates the service bound to the loopback interface. The service is not started
+     * until {@link #start()} is called.
+     *
+     * @param port        The port to listen on, or 0 to pick a free port.
+     * @param workerCount The number of comparison workers.
+     * @param imageRoots  The image root directories requests may compare under.
+     * @throws IOException if the service cannot bind to the port.
+     */
+    public ComparisonService(int port, int workerCount, List<String> imageRoots) throws IOException {
+        for (String imageRoot : imageRoots) {
+            this.imageRoots.add(Paths.get(imageRoot).toAbsolutePath().normalize());
+        }
+        engines.put("selenium", imageDir -> new qa.jaga.core.selenium.ScreenshotUtility(imageDir)::areImagesEqual);
+        engines.put("playwright", imageDir -> new qa.jaga.core.playwright.ScreenshotUtility(imageDir)::areImagesEqual);
+
+        // Only decoding and comparing run on the workers, so the queue depth is the number of waiting comparisons
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+
+        // Requests and bodies are received on their own threads, which are only busy while a client uploads
+        this.dispatcher = Executors.newCachedThreadPool();
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.setExecutor(dispatcher);
+        this.server.createContext("/compare", this::handleCompare);
+        this.server.createContext("/metrics", this::handleMetrics);
+    }
+
+    /**
+     * start starts serving requests.
+     *
+     * @return The base URL of the service, without a trailing slash.
+     */
+    public String start() {
+        server.start();
+        final String baseUrl = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+        LOGGER.log(Level.INFO, "Comparison service started at: " + baseUrl + " with " + workers.getCorePoolSize() + " workers.");
+        return baseUrl;
+    }
+
+    /**
+     * close stops the service, its dispatcher, and its workers.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        dispatcher.shutdownNow();
+        workers.shutdownNow();
+        LOGGER.log(Level.INFO, "Comparison service stopped.");
+    }
+
+    /**
+     * handleCompare receives the submitted screenshot on the dispatcher and submits its decoding and
+     * comparison with the named baseline to the workers, which respond when done.
+     *
+     * @param exchange The HTTP exchange to respond to.
+     * @throws IOException if the response cannot be written.
+     */
+    private void handleCompare(HttpExchange exchange) throws IOException {
+        final Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        final String engineName = query.get("engine");
+        final String imageDir = query.get("imageDir");
+        final String baseImage = query.get("baseline");
+
+        final JsonObject result = new JsonObject();
+        result.addProperty("engine", engineName);
+        result.addProperty("baseline", baseImage);
+
+        // Rejects requests that do not name a known engine, an image directory, and a baseline
+        if (!"POST".equals(exchange.getRequestMethod()) || !engines.containsKey(engineName)
+                || imageDir == null || imageDir.isEmpty() || baseImage == null || baseImage.isEmpty()) {
+            result.addProperty("error", "Expected POST /compare?engine=selenium|playwright&imageDir=<path>&baseline=<name>");
+            respond(exchange, 400, result);
+            return;
+        }
+
+        // Rejects browser simple requests, which cannot carry an image/png body without a preflight
+        if (!"image/png".equals(exchange.getRequestHeaders().getFirst("Content-Type"))) {
+            result.addProperty("error", "Expected Content-Type: image/png");
+            respond(exchange, 415, result);
+            return;
+        }
+
+        // Rejects image directories outside the allowed roots and baseline names that leave the baseline directory
+        if (!imageRoots.contains(Paths.get(imageDir).toAbsolutePath().normalize())
+                || baseImage.contains("/") || baseImage.contains("\\") || baseImage.contains("..")) {
+            LOGGER.log(Level.WARNING, "Comparison refused for image directory " + imageDir + " and baseline " + baseImage);
+            result.addProperty("error", "Image directory not allowed or invalid baseline name");
+            respond(exchange, 403, result);
+            return;
+        }
+        final BiFunction<String, BufferedImage, Boolean> engine =
+                comparisons.computeIfAbsent(engineName + "|" + imageDir, key -> engines.get(engineName).apply(imageDir));
+
+        // Reads the body here, so that a slow upload does not hold a comparison worker
+        final long uploadStart = System.nanoTime();
+        final byte[] body;
+        try {
+            body = readBody(exchange);
+        } catch (IOException ex) {
+            errors.incrementAndGet();
+            LOGGER.log(Level.SEVERE, "Error while reading screenshot: " + ex.getMessage(), ex);
+            result.addProperty("error", String.valueOf(ex.getMessage()));
+            respond(exchange, 500, result);
+            return;
+        }
+        final long uploadMillis = (System.nanoTime() - uploadStart) / 1_000_000;
+        uploadLatencies.record(uploadMillis);
+        result.addProperty("uploadMillis", uploadMillis);
+
+        try {
+            workers.execute(() -> compare(exchange, engine, baseImage, body, result));
+        } catch (RejectedExecutionException ex) {
+            result.addProperty("error", "Comparison service is shutting down");
+            respond(exchange, 503, result);
+        }
+    }
+
+    /**
+     * compare decodes the screenshot and compares it with the named baseline on a worker, then responds.
+     */
+    private void compare(HttpExchange exchange, BiFunction<String, BufferedImage, Boolean> engine, String baseImage,
+                         byte[] body, JsonObject result) {
+        final long start = System.nanoTime();
+        try {
+            try {
+                final BufferedImage screenshot = ImageIO.read(new ByteArrayInputStream(body));
+                final boolean match = engine.apply(baseImage, screenshot);
+                final long durationMillis = (System.nanoTime() - start) / 1_000_000;
+                compareLatencies.record(durationMillis);
+                completed.incrementAndGet();
+                if (!match) {
+                    mismatches.incrementAndGet();
+                }
+                result.addProperty("match", match);
+                result.addProperty("durationMillis", durationMillis);
+                respond(exchange, 200, result);
+            } catch (RuntimeException | IOException ex) {
+                // Reports any errors that occur while comparing the images to the caller
+                errors.incrementAndGet();
+                LOGGER.log(Level.SEVERE, "Error while comparing images: " + ex.getMessage(), ex);
+                result.addProperty("error", String.valueOf(ex.getMessage()));
+                respond(exchange, 500, result);
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Error while responding to the comparison of " + baseImage + ": " + ex.getMessage(), ex);
+            exchange.close();
+        }
+    }
+
+    /**
+     * handleMetrics reports the queue depth, counters, and latency percentiles of the service.
+     *
+     * @param exchange The HTTP exchange to respond to.
+     * @throws IOException if the response cannot be written.
+     */
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        final JsonObject metrics = new JsonObject();
+        metrics.addProperty("workers", workers.getCorePoolSize());
+        metrics.addProperty("queued", workers.getQueue().size());
+        metrics.addProperty("active", workers.getActiveCount());
+        metrics.addProperty("completed", completed.get());
+        metrics.addProperty("mismatches", mismatches.get());
+        metrics.addProperty("errors", errors.get());
+
+        final long[] sorted = compareLatencies.sortedSnapshot();
+        metrics.addProperty("p50Millis", percentile(sorted, 50));
+        metrics.addProperty("p95Millis", percentile(sorted, 95));
+        metrics.addProperty("maxMillis", sorted.length == 0 ? 0 : sorted[sorted.length - 1]);
+        final long[] sortedUploads = uploadLatencies.sortedSnapshot();
+        metrics.addProperty("uploadP50Millis", percentile(sortedUploads, 50));
+        metrics.addProperty("uploadP95Millis", percentile(sortedUploads, 95));
+        respond(exchange, 200, metrics);
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)];
+    }
+
+    /**
+     * readBody reads the complete request body.
+     */
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        try (InputStream inputStream = exchange.getRequestBody()) {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+            }
+            return body.toByteArray();
+        }
+    }
+
+    /**
+     * respond writes the given JSON object as the response.
+     */
+    private static void respond(HttpExchange exchange, int status, JsonObject json) throws IOException {
+        final byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(body);
+        }
+    }
+
+    /**
+     * parseQuery splits a raw query string into its decoded parameters.
+     */
+    private static Map<String, String> parseQuery(String rawQuery) throws IOException {
+        final Map<String, String> parameters = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return parameters;
+        }
+        for (String pair : rawQuery.split("&")) {
+            final int separator = pair.indexOf('=');
+            if (separator > 0) {
+                parameters.put(URLDecoder.decode(pair.substring(0, separator), "UTF-8"),
+                        URLDecoder.decode(pair.substring(separator + 1), "UTF-8"));
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * LatencyWindow class is a ring buffer of the most recent latencies.
+     */
+    private static final class LatencyWindow {
+
+        private final long[] latencies = new long[LATENCY_WINDOW];
+        private long count;
+
+        synchronized void record(long millis) {
+            latencies[(int) (count++ % LATENCY_WINDOW)] = millis;
+        }
+
+        synchronized long[] sortedSnapshot() {
+            final long[] snapshot = Arrays.copyOf(latencies, (int) Math.min(count, LATENCY_WINDOW));
+            Arrays.sort(snapshot);
+            return snapshot;
+        }
+
+    }
+
+    /**
+     * main starts the comparison service and keeps it running until the JVM is stopped.
+     * Options: --port=4545 --workers=<available processors> --imageRoot=<path> (repeatable, both engines' image directories by default)
+     *
+     * @param args The command line options.
+     * @throws IOException if the service cannot bind to the port.
+     */
+    public static void main(String[] args) throws IOException {
+        int port = 4545;
+        int workerCount = Runtime.getRuntime().availableProcessors();
+        final List<String> imageRoots = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--workers=")) {
+                workerCount = Integer.parseInt(arg.substring("--workers=".length()));
+            } else if (arg.startsWith("--imageRoot=")) {
+                imageRoots.add(arg.substring("--imageRoot=".length()));
+            } else {
+                throw new IllegalArgumentException("Unrecognised argument: " + arg);
+            }
+        }
+        final ComparisonService comparisonService = new ComparisonService(port, workerCount,
+                imageRoots.isEmpty() ? DEFAULT_IMAGE_ROOTS : imageRoots);
+        Runtime.getRuntime().addShutdownHook(new Thread(comparisonService::close));
+        comparisonService.start();
+    }
+
+}
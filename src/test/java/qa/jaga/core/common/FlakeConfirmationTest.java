@@ -0,0 +1,109 @@
+package qa.jaga.core.common;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * FlakeConfirmationTest class checks how differing pixels are grouped into regions, and that a mismatch
+ * is only reported as flake when the re-captured regions match the baseline.
+ */
+public class FlakeConfirmationTest {
+
+    /**
+     * identicalImagesHaveNoRegions checks that no region is found when nothing differs.
+     */
+    @Test
+    public void identicalImagesHaveNoRegions() {
+        Assert.assertEquals(FlakeConfirmation.findRegions(image(100, 100), image(100, 100), 1), Collections.emptyList());
+    }
+
+    /**
+     * distantDifferencesFormSeparateRegions checks that differences in cells that do not touch are
+     * reported as one grid aligned region each.
+     */
+    @Test
+    public void distantDifferencesFormSeparateRegions() {
+        final BufferedImage screenshot = image(200, 100);
+        screenshot.setRGB(5, 5, 0xFF0000);
+        screenshot.setRGB(150, 70, 0xFF0000);
+
+        final List<Rectangle> regions = FlakeConfirmation.findRegions(image(200, 100), screenshot, 1);
+        Assert.assertEquals(regions, Arrays.asList(new Rectangle(0, 0, 16, 16), new Rectangle(144, 64, 16, 16)));
+    }
+
+    /**
+     * diagonalNeighboursFormOneRegion checks that differences in diagonally touching cells are merged
+     * into a single bounding region.
+     */
+    @Test
+    public void diagonalNeighboursFormOneRegion() {
+        final BufferedImage screenshot = image(100, 100);
+        screenshot.setRGB(20, 20, 0xFF0000);
+        screenshot.setRGB(35, 35, 0xFF0000);
+        screenshot.setRGB(50, 50, 0xFF0000);
+
+        final List<Rectangle> regions = FlakeConfirmation.findRegions(image(100, 100), screenshot, 1);
+        Assert.assertEquals(regions, Collections.singletonList(new Rectangle(16, 16, 48, 48)));
+    }
+
+    /**
+     * regionsAreAlignedAndClipped checks that regions are aligned outwards to the given multiple and
+     * clipped to the image bounds.
+     */
+    @Test
+    public void regionsAreAlignedAndClipped() {
+        final BufferedImage screenshot = image(50, 50);
+        screenshot.setRGB(17, 17, 0xFF0000);
+        screenshot.setRGB(49, 49, 0xFF0000);
+
+        final List<Rectangle> regions = FlakeConfirmation.findRegions(image(50, 50), screenshot, 3);
+        Assert.assertEquals(regions, Arrays.asList(new Rectangle(15, 15, 18, 18), new Rectangle(48, 48, 2, 2)));
+    }
+
+    /**
+     * isFlakeFollowsTheRecapture checks that a mismatch is flake when the re-captured regions match the
+     * baseline, and persists when they still show the difference.
+     */
+    @Test
+    public void isFlakeFollowsTheRecapture() {
+        final BufferedImage baseline = image(200, 200);
+        final BufferedImage screenshot = image(200, 200);
+        screenshot.setRGB(40, 40, 0xFF0000);
+
+        Assert.assertTrue(FlakeConfirmation.isFlake(baseline, screenshot, 1,
+                region -> baseline.getSubimage(region.x, region.y, region.width, region.height), FlakeConfirmationTest::equal));
+        Assert.assertFalse(FlakeConfirmation.isFlake(baseline, screenshot, 1,
+                region -> screenshot.getSubimage(region.x, region.y, region.width, region.height), FlakeConfirmationTest::equal));
+    }
+
+    /**
+     * isFlakeRejectsSizeChanges checks that a change of page size is never confirmed by regions.
+     */
+    @Test
+    public void isFlakeRejectsSizeChanges() {
+        Assert.assertFalse(FlakeConfirmation.isFlake(image(200, 200), image(200, 210), 1,
+                region -> { throw new AssertionError("No region should be re-captured"); }, FlakeConfirmationTest::equal));
+    }
+
+    private static BufferedImage image(int width, int height) {
+        return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    }
+
+    private static boolean equal(BufferedImage expected, BufferedImage actual) {
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                if (expected.getRGB(x, y) != actual.getRGB(x, y)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+}
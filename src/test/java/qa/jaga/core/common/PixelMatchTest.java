@@ -0,0 +1,102 @@
+package qa.jaga.core.common;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+
+/**
+ * PixelMatchTest class checks that PixelMatch tells anti-aliasing from real changes, ignores color
+ * differences below the threshold, and marks the classified pixels.
+ */
+public class PixelMatchTest {
+
+    /**
+     * identicalImagesMatch checks that identical images have no differences of either kind.
+     */
+    @Test
+    public void identicalImagesMatch() {
+        final PixelMatch pixelMatch = PixelMatch.compare(scene(0, false), scene(0, false));
+        Assert.assertFalse(pixelMatch.hasDiff());
+        Assert.assertEquals(pixelMatch.getAntialiasedPixels(), 0);
+    }
+
+    /**
+     * addedElementIsARealChange checks that every pixel of a new solid element counts as a real change.
+     */
+    @Test
+    public void addedElementIsARealChange() {
+        final PixelMatch pixelMatch = PixelMatch.compare(scene(0, false), scene(0, true));
+        Assert.assertEquals(pixelMatch.getDifferentPixels(), 20 * 20);
+        Assert.assertEquals(pixelMatch.getAntialiasedPixels(), 0);
+    }
+
+    /**
+     * subpixelShiftIsAntialiasing checks that a shape rendered a fraction of a pixel apart only changes
+     * anti-aliased edge pixels.
+     */
+    @Test
+    public void subpixelShiftIsAntialiasing() {
+        final PixelMatch pixelMatch = PixelMatch.compare(scene(0, false), scene(0.3, false));
+        Assert.assertFalse(pixelMatch.hasDiff(), "Real differences: " + pixelMatch.getDifferentPixels());
+        Assert.assertTrue(pixelMatch.getAntialiasedPixels() > 0);
+    }
+
+    /**
+     * smallColorChangeIsBelowThreshold checks that a color change below the default YIQ threshold is ignored.
+     */
+    @Test
+    public void smallColorChangeIsBelowThreshold() {
+        final BufferedImage expected = new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+        final BufferedImage actual = new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+        actual.setRGB(5, 5, 0x0A0A0A);
+
+        final PixelMatch pixelMatch = PixelMatch.compare(expected, actual);
+        Assert.assertFalse(pixelMatch.hasDiff());
+        Assert.assertEquals(pixelMatch.getAntialiasedPixels(), 0);
+    }
+
+    /**
+     * markedImageShowsRealChanges checks that real changes are marked in red and the rest is the capture.
+     */
+    @Test
+    public void markedImageShowsRealChanges() {
+        final BufferedImage marked = PixelMatch.compare(scene(0, false), scene(0, true)).getMarkedImage();
+        Assert.assertEquals(marked.getRGB(250, 30), 0xFFFF0000);
+        Assert.assertEquals(marked.getRGB(5, 5), 0xFFFFFFFF);
+    }
+
+    /**
+     * differentSizesAreRejected checks that images of different sizes cannot be compared.
+     */
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void differentSizesAreRejected() {
+        PixelMatch.compare(new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB), new BufferedImage(10, 11, BufferedImage.TYPE_INT_RGB));
+    }
+
+    /**
+     * scene draws an anti-aliased circle and a rectangle on white, optionally shifted horizontally
+     * and with an extra 20x20 box.
+     */
+    private static BufferedImage scene(double shift, boolean box) {
+        final BufferedImage image = new BufferedImage(300, 80, BufferedImage.TYPE_INT_RGB);
+        final Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, 300, 80);
+        graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        graphics.setColor(Color.BLACK);
+        graphics.fill(new Ellipse2D.Double(20 + shift, 20, 40, 40));
+        graphics.fillRect(100, 20, 100, 30);
+        if (box) {
+            graphics.setColor(Color.BLUE);
+            graphics.fillRect(240, 20, 20, 20);
+        }
+        graphics.dispose();
+        return image;
+    }
+
+}
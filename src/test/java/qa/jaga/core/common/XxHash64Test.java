@@ -0,0 +1,87 @@
+package qa.jaga.core.common;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+/**
+ * XxHash64Test class checks the streaming xxHash64 implementation against reference digests
+ * computed with lz4-java, and checks that the digest does not depend on how the input is chunked.
+ */
+public class XxHash64Test {
+
+    /**
+     * referenceDigests provides input lengths, in 32-bit values, and the reference xxHash64 (seed 0)
+     * of the little-endian bytes (i * 7 + 1) for i from 0 to 4 * length - 1.
+     *
+     * @return A 2D array of lengths and digests.
+     */
+    @DataProvider
+    public Object[][] referenceDigests() {
+        return new Object[][]{
+                {0, 0xEF46DB3751D8E999L},
+                {1, 0x22EDA2CF6AF4C124L},
+                {3, 0x9178B724DCE384C0L},
+                {8, 0x5A0756FBE9ECD3D1L},
+                {9, 0x31E83081F3301BB8L},
+                {25, 0xD248BFC5208B0B16L},
+                {256, 0x84B6D3F9F48B9584L}
+        };
+    }
+
+    /**
+     * digestMatchesReference hashes the input in one update and compares it with the reference digest.
+     */
+    @Test(dataProvider = "referenceDigests")
+    public void digestMatchesReference(int length, long expectedDigest) {
+        final int[] values = referenceInput(length);
+        final XxHash64 xxHash64 = new XxHash64();
+        xxHash64.update(values, 0, values.length);
+        Assert.assertEquals(xxHash64.digest(), expectedDigest, "Digest of " + length + " values");
+    }
+
+    /**
+     * digestIgnoresChunking hashes random inputs in random chunks, mixed with single value updates,
+     * and compares the digest with the one of a single update.
+     */
+    @Test
+    public void digestIgnoresChunking() {
+        final Random random = new Random(42);
+        for (int run = 0; run < 500; run++) {
+            final int[] values = new int[random.nextInt(200)];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = random.nextInt();
+            }
+            final XxHash64 whole = new XxHash64();
+            whole.update(values, 0, values.length);
+
+            final XxHash64 chunked = new XxHash64();
+            int offset = 0;
+            while (offset < values.length) {
+                if (random.nextBoolean()) {
+                    chunked.update(values[offset++]);
+                } else {
+                    final int length = Math.min(values.length - offset, random.nextInt(20));
+                    chunked.update(values, offset, length);
+                    offset += length;
+                }
+            }
+            Assert.assertEquals(chunked.digest(), whole.digest(), "Digest of run " + run);
+        }
+    }
+
+    private static int[] referenceInput(int length) {
+        final int[] values = new int[length];
+        for (int i = 0; i < length; i++) {
+            int value = 0;
+            for (int b = 0; b < 4; b++) {
+                value |= ((i * 4 + b) * 7 + 1 & 0xFF) << (8 * b);
+            }
+            values[i] = value;
+        }
+        return values;
+    }
+
+}
@@ -0,0 +1,138 @@
+package qa.jaga.core.playwright;
+
+import com.microsoft.playwright.Browser;
+import com.microsoft.playwright.BrowserContext;
+import com.microsoft.playwright.BrowserType;
+import com.microsoft.playwright.Page;
+import com.microsoft.playwright.Playwright;
+import com.microsoft.playwright.PlaywrightException;
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import qa.jaga.core.benchmark.FixtureServer;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ViewportMatrixTest class captures a local fixture page at every breakpoint of the viewport matrix on
+ * each engine, approves the captures, and checks that a second matrix matches them and that the page
+ * gets its original window size back. Engines that are not installed, or cannot be installed, are skipped.
+ */
+public class ViewportMatrixTest {
+
+    // Fixture server serving the page captured at every breakpoint
+    private FixtureServer fixtureServer;
+
+    // Temporary image root, so that the project baselines are not touched
+    private Path imageDir;
+
+    /**
+     * setUp starts the fixture server and creates the temporary image root.
+     *
+     * @throws IOException if the server cannot bind or the directory cannot be created.
+     */
+    @BeforeClass
+    public void setUp() throws IOException {
+        this.fixtureServer = new FixtureServer(0, 0, 1200, false, null);
+        this.fixtureServer.start();
+        this.imageDir = Files.createTempDirectory("viewport-matrix");
+    }
+
+    /**
+     * tearDown stops the fixture server and deletes the temporary image root.
+     *
+     * @throws IOException if the directory cannot be deleted.
+     */
+    @AfterClass(alwaysRun = true)
+    public void tearDown() throws IOException {
+        if (this.fixtureServer != null) {
+            this.fixtureServer.close();
+        }
+        if (this.imageDir != null) {
+            FileUtils.deleteDirectory(this.imageDir.toFile());
+        }
+    }
+
+    /**
+     * engines provides the names of the Playwright browser types.
+     *
+     * @return A 2D array of engine names.
+     */
+    @DataProvider
+    public Object[][] engines() {
+        return new Object[][]{{"chromium"}, {"firefox"}, {"webkit"}};
+    }
+
+    /**
+     * matrixMatchesApprovedCapturesAndRestoresWindow captures the matrix without baselines, approves its
+     * captures, captures it again, and checks the capture sizes, the results, and the restored window size.
+     *
+     * @param engine The name of the browser type.
+     * @throws IOException if a capture cannot be read or approved.
+     */
+    @Test(dataProvider = "engines")
+    public void matrixMatchesApprovedCapturesAndRestoresWindow(String engine) throws IOException {
+        try (Playwright playwright = createPlaywright()) {
+            final Browser browser = launch(playwright, engine);
+
+            // Like the regression tests, the context follows the window size instead of a fixed viewport
+            final BrowserContext browserContext = browser.newContext(new Browser.NewContextOptions().setViewportSize(null));
+            final Page page = browserContext.newPage();
+            page.navigate(fixtureServer.getBaseUrl() + "/page/matrix");
+            final List<?> windowSize = (List<?>) page.evaluate("() => [window.innerWidth, window.innerHeight]");
+
+            final ScreenshotUtility screenshotUtility = new ScreenshotUtility(imageDir.resolve(engine).toString());
+            final Map<String, Boolean> firstResults = screenshotUtility.captureViewportMatrix(page, "matrix");
+            Assert.assertEquals(firstResults.keySet().size(), Viewport.BREAKPOINTS.size(), "Viewports captured");
+            Assert.assertFalse(firstResults.containsValue(true), "Matches without baselines: " + firstResults);
+            Assert.assertEquals(page.evaluate("() => [window.innerWidth, window.innerHeight]"), windowSize,
+                    "Window size after the first matrix");
+
+            // Approves the captures, which have the width of their viewport, scaled on Chromium only
+            for (Viewport viewport : Viewport.BREAKPOINTS) {
+                final File screenshot = imageDir.resolve(engine).resolve("screenshot").resolve("matrix_" + viewport.getName() + ".png").toFile();
+                final BufferedImage image = ImageIO.read(screenshot);
+                final double scale = "chromium".equals(engine) ? viewport.getDeviceScaleFactor() : 1;
+                Assert.assertEquals(image.getWidth(), (int) Math.round(viewport.getWidth() * scale), "Width of " + viewport);
+                FileUtils.copyFile(screenshot, imageDir.resolve(engine).resolve("baseline").resolve(screenshot.getName()).toFile());
+            }
+
+            final Map<String, Boolean> secondResults = screenshotUtility.captureViewportMatrix(page, "matrix");
+            Assert.assertFalse(secondResults.containsValue(false), "Mismatches against approved captures: " + secondResults);
+            Assert.assertEquals(page.evaluate("() => [window.innerWidth, window.innerHeight]"), windowSize,
+                    "Window size after the second matrix");
+            browserContext.close();
+        }
+    }
+
+    private static Playwright createPlaywright() {
+        try {
+            return Playwright.create();
+        } catch (RuntimeException ex) {
+            // The driver and browsers are downloaded on first use, which needs network access
+            throw new SkipException("Playwright driver is not available: " + ex.getMessage());
+        }
+    }
+
+    private static Browser launch(Playwright playwright, String engine) {
+        final BrowserType browserType = "firefox".equals(engine) ? playwright.firefox()
+                : "webkit".equals(engine) ? playwright.webkit() : playwright.chromium();
+        try {
+            return browserType.launch(new BrowserType.LaunchOptions().setHeadless(true));
+        } catch (PlaywrightException ex) {
+            throw new SkipException(engine + " is not installed: " + ex.getMessage());
+        }
+    }
+
+}